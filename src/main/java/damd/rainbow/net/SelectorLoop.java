@@ -0,0 +1,258 @@
+package damd.rainbow.net;
+
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.io.IOException;
+
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+
+/* A single thread waiting on a single Selector on behalf of many
+   channels, see SelectorLoopGroup. */
+public class SelectorLoop
+    implements
+	Runnable
+{
+    public interface Handler
+    {
+	/* Invoked on the loop thread when the key of the channel
+	   registered by this handler has been selected. */
+	public void handleSelect (SelectionKey key)
+	    throws Exception;
+
+	/* Invoked on the loop thread when handleSelect failed or
+	   when the loop is stopping while the channel is still
+	   registered. */
+	public void handleLoopClosed (Throwable cause);
+    }
+
+    private Logger logger;
+
+    private final String name;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean wakeup_pending;
+
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    public SelectorLoop (final String name)
+	throws IOException
+    {
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	selector = Selector.open ();
+	tasks = new ConcurrentLinkedQueue<> ();
+	wakeup_pending = new AtomicBoolean ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    public boolean inLoop ()
+    {
+	return Thread.currentThread () == thread;
+    }
+
+    public boolean isAlive ()
+    {
+	return null != thread;
+    }
+
+    /* Number of channels registered with this loop (approximate,
+       can be invoked from any thread) */
+    public int getChannelCount ()
+    {
+	try {
+	    return selector.keys ().size ();
+	} catch (ClosedSelectorException x) {
+	    return 0;
+	}
+    }
+
+    /* Run task on the loop thread (can be invoked from any thread),
+       the task is never run inline, not even on the loop thread. */
+    public void execute (final Runnable task)
+    {
+	if (null == task)
+	    throw new NullPointerException ("task");
+
+	tasks.offer (task);
+
+	if (!inLoop () && wakeup_pending.compareAndSet (false, true))
+	    selector.wakeup ();
+    }
+
+    /* Register channel with this loop, the registration is done on
+       the loop thread after which handler receives its key through
+       handleSelect's key argument. */
+    public void register (final SelectableChannel channel,
+			  final int ops,
+			  final Handler handler,
+			  final Runnable registered)
+    {
+	if (null == channel)
+	    throw new NullPointerException ("channel");
+
+	if (null == handler)
+	    throw new NullPointerException ("handler");
+
+	execute (new Runnable () {
+		public void run ()
+		{
+		    try {
+			channel.register (selector, ops, handler);
+			if (null != registered)
+			    registered.run ();
+		    } catch (Throwable x) {
+			handler.handleLoopClosed (x);
+		    }
+		}
+	    });
+    }
+
+    public SelectionKey keyFor (final SelectableChannel channel)
+    {
+	return channel.keyFor (selector);
+    }
+
+    public void start ()
+    {
+	final Thread t = new Thread (this, toString ());
+
+	t.setDaemon (true);
+
+	running = true;
+	thread = t;
+	t.start ();
+    }
+
+    // Only for a loop whose thread never started
+    public void close ()
+	throws IOException
+    {
+	selector.close ();
+    }
+
+    public void stop ()
+    {
+	running = false;
+	selector.wakeup ();
+    }
+
+    public void join (final long millis)
+	throws InterruptedException
+    {
+	final Thread t = thread;
+
+	if (null != t)
+	    t.join (millis);
+    }
+
+    private void runTasks ()
+    {
+	Runnable task;
+
+	while (null != (task = tasks.poll ())) {
+	    try {
+		task.run ();
+	    } catch (Throwable x) {
+		logger.log (Level.SEVERE, "While running loop task", x);
+	    }
+	}
+    }
+
+    private void processSelectedKeys ()
+    {
+	for (final SelectionKey key : selector.selectedKeys ()) {
+	    final Handler handler = (Handler) key.attachment ();
+
+	    try {
+		if (key.isValid ())
+		    handler.handleSelect (key);
+	    } catch (Throwable x) {
+		try {
+		    handler.handleLoopClosed (x);
+		} catch (Throwable y) {
+		    logger.log (Level.SEVERE, "While closing handler", y);
+		}
+	    }
+	}
+
+	selector.selectedKeys ().clear ();
+    }
+
+    private void closeRegisteredHandlers ()
+    {
+	runTasks ();
+
+	for (final SelectionKey key : selector.keys ()) {
+	    try {
+		((Handler) key.attachment ()).handleLoopClosed (null);
+	    } catch (Throwable x) {
+		logger.log (Level.WARNING, "While closing handler", x);
+	    }
+	}
+
+	runTasks ();
+    }
+
+    // >>> Runnable
+
+    public void run ()
+    {
+	logger.fine ("SelectorLoop thread has started");
+
+	try {
+	    while (running) {
+		wakeup_pending.set (false);
+		runTasks ();
+
+		if (!running)
+		    break;
+
+		if (tasks.isEmpty ())
+		    selector.select ();
+		else
+		    selector.selectNow ();
+
+		processSelectedKeys ();
+	    }
+	} catch (ClosedSelectorException x) {
+	    // swallow, requested to stop
+	} catch (Throwable x) {
+	    logger.log (Level.SEVERE, "While selecting", x);
+	} finally {
+	    running = false;
+
+	    closeRegisteredHandlers ();
+
+	    try {
+		selector.close ();
+	    } catch (IOException x) {
+		logger.log (Level.WARNING, "While closing selector", x);
+	    }
+
+	    thread = null;
+	}
+
+	logger.fine ("SelectorLoop thread has stopped");
+    }
+
+    // <<< Runnable
+}
@@ -0,0 +1,195 @@
+package damd.rainbow.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.io.IOException;
+
+import damd.rainbow.behavior.Engine;
+
+/* A fixed number of SelectorLoops shared by all the channels that are
+   registered with this group, a channel is assigned to a loop for its
+   whole lifetime. */
+public class SelectorLoopGroup
+    implements
+	Engine
+{
+    private Logger logger;
+
+    private String name;
+
+    private int loop_count;
+
+    private SelectorLoop[] loops; // null ~ STOPPED
+    private final AtomicInteger next_loop;
+
+    public SelectorLoopGroup (final String name)
+    {
+	if (null == name)
+	    throw new NullPointerException ("name");
+
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	loop_count = Runtime.getRuntime ().availableProcessors ();
+	next_loop = new AtomicInteger ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    // >>> Named
+
+    public String getName ()
+    {
+	return name;
+    }
+
+    public void setName (final String name)
+	throws UnsupportedOperationException
+    {
+	throw new UnsupportedOperationException ();
+    }
+
+    // <<< Named
+
+    private void checkState (State needed_state)
+	throws IllegalStateException
+    {
+	if (needed_state != currentState ())
+	    throw new IllegalStateException
+		("This method can only be invoked when the group is in"
+		 + " state(" + needed_state + ")");
+    }
+
+    public synchronized int getLoopCount ()
+    {
+	return loop_count;
+    }
+
+    public synchronized void setLoopCount (final int loop_count)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	if (loop_count < 1)
+	    throw new IllegalArgumentException
+		("loop_count(" + loop_count + ") must be >= 1");
+
+	this.loop_count = loop_count;
+    }
+
+    /* Returns the loop that should handle the next channel
+       (round robin) */
+    public SelectorLoop next ()
+	throws IllegalStateException
+    {
+	final SelectorLoop[] loops;
+
+	synchronized (this) {
+	    loops = this.loops;
+	}
+
+	if (null == loops)
+	    throw new IllegalStateException
+		("Group(" + name + ") is not running");
+
+	return loops[(next_loop.getAndIncrement () & Integer.MAX_VALUE)
+		     % loops.length];
+    }
+
+    public synchronized int getChannelCount ()
+    {
+	int count = 0;
+
+	if (null != loops)
+	    for (final SelectorLoop loop : loops)
+		count += loop.getChannelCount ();
+
+	return count;
+    }
+
+    /* Stops the first started loops and closes the others (that were
+       created) of a group that failed to start */
+    private void discard (final SelectorLoop[] new_loops, final int started)
+    {
+	for (int n = 0;n < started;++n)
+	    new_loops[n].stop ();
+
+	for (int n = started;n < new_loops.length;++n)
+	    if (null != new_loops[n])
+		try {
+		    new_loops[n].close ();
+		} catch (IOException x) {
+		    logger.log (Level.WARNING, "While closing selector", x);
+		}
+
+	try {
+	    for (int n = 0;n < started;++n)
+		new_loops[n].join (5000);
+	} catch (InterruptedException x) {
+	    Thread.currentThread ().interrupt (); // keep the original failure
+	}
+    }
+
+    // >>> Engine
+
+    public synchronized State currentState ()
+    {
+	return null != loops ? State.RUNNING : State.STOPPED;
+    }
+
+    public synchronized void changeState (final State new_state)
+	throws IOException, InterruptedException
+    {
+	if (new_state != currentState ()) {
+	    switch (new_state) {
+	    case RUNNING:
+		{
+		    final SelectorLoop[] new_loops =
+			new SelectorLoop[loop_count];
+		    int started = 0;
+		    boolean done = false;
+
+		    try {
+			for (int n = 0;n < new_loops.length;++n)
+			    new_loops[n] = new SelectorLoop (name + "#" + n);
+
+			for (;started < new_loops.length;++started)
+			    new_loops[started].start ();
+
+			done = true;
+		    } finally {
+			if (!done)
+			    discard (new_loops, started);
+		    }
+
+		    loops = new_loops;
+
+		    logger.fine ("Started " + loops.length + " loop(s)");
+		}
+		break;
+	    case STOPPED:
+		for (final SelectorLoop loop : loops)
+		    loop.stop ();
+
+		for (final SelectorLoop loop : loops) {
+		    loop.join (5000);
+		    if (loop.isAlive ())
+			logger.severe ("Could not stop loop(" + loop + ")");
+		}
+
+		loops = null;
+		break;
+	    }
+	}
+    }
+
+    // <<< Engine
+}
@@ -10,4 +10,8 @@ public interface SocketHandler
 	throws IOException;
     public void close ()
 	throws IOException;
+
+    /* Stop reading but finish what is in progress (e.g. flush the
+       outbound data) and close as soon as that is done */
+    public void startClosing ();
 }
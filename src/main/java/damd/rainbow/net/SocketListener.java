@@ -1,37 +1,211 @@
 package damd.rainbow.net;
 
-import java.util.HashSet;
+import java.util.function.BiFunction;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import java.io.IOException;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 
-import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
 
 import damd.rainbow.behavior.Engine;
 
 public class SocketListener
     implements
-	Runnable,
 	Engine
 {
+    /* Waits for connections on its own selector and accepts all
+       pending connections each time it wakes up. */
+    private class Acceptor
+	implements
+	    Runnable
+    {
+	private final Selector selector;
+
+	/* After accept failed (e.g. out of file descriptors, the
+	   connection stays pending) the acceptor stops selecting for
+	   ACCEPT_BACKOFF ms instead of spinning, and logs the failures
+	   at most once every ACCEPT_LOG_INTERVAL ms */
+	private long resume_at; // 0 ~ accepting
+	private long logged_at;
+	private int unlogged; // failures since logged_at
+
+	public Acceptor (final ServerSocketChannel channel)
+	    throws IOException
+	{
+	    selector = Selector.open ();
+	    try {
+		channel.register (selector, SelectionKey.OP_ACCEPT);
+	    } catch (IOException x) {
+		selector.close ();
+		throw x;
+	    }
+	}
+
+	public void wakeup ()
+	{
+	    selector.wakeup ();
+	}
+
+	// Only for an acceptor whose thread never started
+	public void close ()
+	    throws IOException
+	{
+	    selector.close ();
+	}
+
+	private void acceptAll (final SelectionKey key)
+	{
+	    final ServerSocketChannel channel =
+		(ServerSocketChannel) key.channel ();
+
+	    while (running) {
+		final SocketChannel schannel;
+
+		try {
+		    if (null == (schannel = channel.accept ()))
+			break; // backlog drained
+		} catch (ClosedChannelException x) {
+		    break; // requested to stop (see changeState)
+		} catch (IOException x) {
+		    backOff (key, x);
+		    break;
+		}
+
+		accepted (schannel);
+	    }
+	}
+
+	private void backOff (final SelectionKey key, final IOException x)
+	{
+	    final long now = System.currentTimeMillis ();
+
+	    key.interestOps (0);
+	    resume_at = now + ACCEPT_BACKOFF;
+
+	    if (now - logged_at < ACCEPT_LOG_INTERVAL) {
+		++unlogged;
+		return;
+	    }
+
+	    logger.log (Level.SEVERE,
+			"While accepting a connection (" + unlogged
+			+ " more failure(s) since the last one logged)"
+			+ ", pausing for " + ACCEPT_BACKOFF + " ms",
+			x);
+	    logged_at = now;
+	    unlogged = 0;
+	}
+
+	// Waits for connections, or until the back off is over
+	private void select ()
+	    throws IOException
+	{
+	    final long left;
+
+	    if (0L == resume_at) {
+		selector.select ();
+		return;
+	    }
+
+	    left = resume_at - System.currentTimeMillis ();
+	    if (left > 0)
+		selector.select (left);
+
+	    if (System.currentTimeMillis () >= resume_at) {
+		resume_at = 0L;
+		for (final SelectionKey key : selector.keys ())
+		    if (key.isValid ())
+			key.interestOps (SelectionKey.OP_ACCEPT);
+	    }
+	}
+
+	// >>> Runnable
+
+	public void run ()
+	{
+	    logger.fine ("SocketListener acceptor thread has started");
+
+	    try {
+		while (running) {
+		    select ();
+		    selector.selectedKeys ().clear ();
+
+		    for (final SelectionKey key : selector.keys ())
+			if (key.isValid () && 0 != key.interestOps ())
+			    acceptAll (key);
+		}
+	    } catch (IOException x) {
+		logger.log (Level.SEVERE,
+			    "While waiting to accept a connection",
+			    x);
+	    } finally {
+		try {
+		    selector.close ();
+		} catch (IOException x) {
+		    logger.log (Level.WARNING,
+				"While closing the selector",
+				x);
+		}
+	    }
+
+	    logger.fine ("SocketListener acceptor thread has stopped");
+	}
+
+	// <<< Runnable
+    }
+
+    private static final long ACCEPT_BACKOFF = 100L; // see Acceptor
+    private static final long ACCEPT_LOG_INTERVAL = 10000L; // idem
+
     private Logger logger;
 
     private String name;
 
     private InetSocketAddress listener_address;
     private SocketHandlerFactory handler_factory;
+    private int backlog; // <= 0 ~ default
+    private int acceptor_count;
+    private Executor setup_executor; // null ~ on acceptor thread
+
+    private int max_connections; // <= 0 ~ no limit
+    private int max_connections_per_address; // <= 0 ~ no limit
+    private int max_accept_rate; // per second, <= 0 ~ no limit
+    private long drain_timeout; // in milliseconds, 0 ~ no draining
 
     private ServerSocketChannel channel;
-    private HashSet<SocketHandler> handlers;
+    private final ConcurrentHashMap<SocketHandler, InetAddress> handlers;
+
+    // admission control
+    private final AtomicInteger connection_count;
+    private final ConcurrentHashMap<InetAddress, Integer> address_counts;
+    private final AtomicLong rejected_count;
+    private double accept_tokens; // synchronized on connection_count
+    private long accept_tokens_at; // idem, in nanoseconds
 
-    private Thread worker;
+    private final Object drained; // notified when handlers gets empty
+    private volatile boolean draining;
+    private final AtomicInteger setups; // accepted, being set up
+
+    private Acceptor[] acceptors;
+    private Thread[] acceptor_threads;
+    private volatile boolean running;
 
     public SocketListener (String name)
     {
@@ -43,7 +217,17 @@ public class SocketListener
 
 	this.name = name;
 
-	handlers = new HashSet<SocketHandler> ();
+	acceptor_count = 1;
+	drain_timeout = 5000L;
+
+	handlers = new ConcurrentHashMap<> ();
+
+	connection_count = new AtomicInteger ();
+	address_counts = new ConcurrentHashMap<> ();
+	rejected_count = new AtomicLong ();
+
+	drained = new Object ();
+	setups = new AtomicInteger ();
     }
 
     public String toString ()
@@ -94,75 +278,398 @@ public class SocketListener
 	this.handler_factory = factory;
     }
 
-    public void removeHandler (SocketHandler handler)
+    /* Maximum number of pending connections (<= 0 ~ the default of
+       the platform) */
+    public void setBacklog (final int backlog)
+	throws IllegalStateException
     {
-	synchronized (handlers) {
-	    if (handlers.contains (handler)) {
-		try {
-		    handler.close ();
-		} catch (IOException x) {
-		    logger.log (Level.WARNING, "While closing handler", x);
-		}
-		handlers.remove (handler);
+	checkState (State.STOPPED);
+
+	this.backlog = backlog;
+    }
+
+    /* Number of threads accepting connections on the listener
+       address */
+    public void setAcceptorCount (final int acceptor_count)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	if (acceptor_count < 1)
+	    throw new IllegalArgumentException
+		("acceptor_count(" + acceptor_count + ") must be >= 1");
+
+	this.acceptor_count = acceptor_count;
+    }
+
+    /* Executor creating and opening the handlers of accepted
+       connections, without one this is done on the acceptor thread
+       (which then does not accept connections in the meantime). */
+    public void setSetupExecutor (final Executor executor)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	setup_executor = executor;
+    }
+
+    /* Maximum number of connections handled at the same time, the
+       connections above it are closed right after being accepted */
+    public void setMaxConnections (final int max)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	max_connections = max;
+    }
+
+    /* Maximum number of connections from the same (remote) address
+       handled at the same time */
+    public void setMaxConnectionsPerAddress (final int max)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	max_connections_per_address = max;
+    }
+
+    /* Maximum number of connections accepted per second (bursts of up
+       to the same number of connections are allowed) */
+    public void setMaxAcceptRate (final int max)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	max_accept_rate = max;
+    }
+
+    /* When stopping, the open handlers are asked to close gracefully
+       (see SocketHandler.startClosing) and the handlers still open
+       after timeout milliseconds are closed (0 ~ closed right away). */
+    public void setDrainTimeout (final long timeout)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	if (timeout < 0)
+	    throw new IllegalArgumentException
+		("timeout(" + timeout + ") must be >= 0");
+
+	drain_timeout = timeout;
+    }
+
+    public boolean isDraining ()
+    {
+	return draining;
+    }
+
+    public int getConnectionCount ()
+    {
+	return connection_count.get ();
+    }
+
+    public long getRejectedCount ()
+    {
+	return rejected_count.get ();
+    }
+
+    private boolean acquireAcceptToken ()
+    {
+	if (max_accept_rate <= 0)
+	    return true;
+
+	synchronized (connection_count) {
+	    final long now = System.nanoTime ();
+
+	    accept_tokens = Math.min
+		(max_accept_rate,
+		 accept_tokens
+		 + (now - accept_tokens_at) * max_accept_rate / 1e9);
+	    accept_tokens_at = now;
+
+	    if (accept_tokens < 1.0)
+		return false;
+
+	    accept_tokens -= 1.0;
+	}
+
+	return true;
+    }
+
+    private boolean admit (final InetAddress address)
+    {
+	if (connection_count.incrementAndGet () > max_connections
+	    && max_connections > 0) {
+	    connection_count.decrementAndGet ();
+	    return false;
+	}
+
+	if (max_connections_per_address > 0) {
+	    final boolean[] admitted = new boolean[1];
+
+	    address_counts.compute
+		(address,
+		 new BiFunction<InetAddress, Integer, Integer> () {
+		     public Integer apply (final InetAddress a,
+					   final Integer count)
+		     {
+			 final int n = null == count ? 0 : count;
+
+			 if (n >= max_connections_per_address)
+			     return count;
+
+			 admitted[0] = true;
+			 return n + 1;
+		     }
+		 });
+
+	    if (!admitted[0]) {
+		connection_count.decrementAndGet ();
+		return false;
 	    }
 	}
+
+	return true;
     }
 
-    // >>> Runnable
+    private void dismiss (final InetAddress address)
+    {
+	connection_count.decrementAndGet ();
+
+	if (max_connections_per_address > 0)
+	    address_counts.computeIfPresent
+		(address,
+		 new BiFunction<InetAddress, Integer, Integer> () {
+		     public Integer apply (final InetAddress a,
+					   final Integer count)
+		     {
+			 return count > 1 ? count - 1 : null;
+		     }
+		 });
+    }
 
-    public void run ()
+    private void reject (final SocketChannel schannel)
     {
-	logger.fine ("SocketListener worker thread has started");
+	rejected_count.incrementAndGet ();
 
 	try {
-	    while (true) {
-		SocketChannel schannel;
-		SocketHandler handler = null;
-
-		schannel = channel.accept (); // blocks
+	    schannel.socket ().setSoLinger (true, 0); // reset, no TIME_WAIT
+	    schannel.close ();
+	} catch (IOException x) {
+	    logger.log (Level.FINE, "While closing rejected connection", x);
+	}
+    }
 
-		try {
-		    handler = handler_factory.createSocketHandler ();
+    public void removeHandler (SocketHandler handler)
+    {
+	final InetAddress address;
 
-		    synchronized (handlers) {
-			handlers.add (handler);
-		    }
+	if (null != handler && null != (address = handlers.remove (handler))) {
+	    dismiss (address);
 
-		    handler.open (schannel, this);
-		} catch (final Throwable t) {
-		    logger.log (Level.SEVERE,
-				"While creating/opening SocketHandler("
-				+ handler
-				+ ")",
-				t);
-		    removeHandler (handler);
-		    schannel.close ();
+	    if (draining && handlers.isEmpty ())
+		synchronized (drained) {
+		    drained.notifyAll ();
 		}
+
+	    try {
+		handler.close ();
+	    } catch (IOException x) {
+		logger.log (Level.WARNING, "While closing handler", x);
 	    }
-	} catch (AsynchronousCloseException x) {
-	    // Requested to stop (see changeState), swallow
+	}
+    }
+
+    private void accepted (final SocketChannel schannel)
+    {
+	final InetAddress address;
+
+	try {
+	    address = ((InetSocketAddress) schannel.getRemoteAddress ())
+		.getAddress ();
 	} catch (IOException x) {
-	    logger.log (Level.SEVERE,
-			"While waiting to accept a connection",
-			x);
+	    reject (schannel); // already gone
+	    return;
 	}
 
-	synchronized (this) {
+	if (!acquireAcceptToken () || !admit (address)) {
+	    logger.fine ("Rejecting connection from(" + address + ")");
+	    reject (schannel);
+	    return;
+	}
+
+	setups.incrementAndGet ();
+
+	if (null == setup_executor)
+	    setupHandler (schannel, address);
+	else {
 	    try {
-		channel.close ();
+		setup_executor.execute (new Runnable () {
+			public void run ()
+			{
+			    setupHandler (schannel, address);
+			}
+		    });
+	    } catch (RejectedExecutionException x) {
+		logger.log (Level.SEVERE,
+			    "While handing over accepted connection",
+			    x);
+		dismiss (address);
+		reject (schannel);
+		setupDone ();
+	    }
+	}
+    }
+
+    private void setupDone ()
+    {
+	if (0 == setups.decrementAndGet () && draining)
+	    synchronized (drained) {
+		drained.notifyAll ();
+	    }
+    }
+
+    /* The listener may have been stopped since the connection was
+       accepted (e.g. while it waited for the setup executor), the
+       connection is rejected then. drain waits for the setups in
+       flight, a handler opened while it is draining is closed right
+       away. */
+    private void setupHandler (final SocketChannel schannel,
+			       final InetAddress address)
+    {
+	SocketHandler handler = null;
+
+	try {
+	    if (!running) {
+		logger.fine ("Rejecting connection from(" + address
+			     + "), the listener has been stopped");
+		dismiss (address);
+		reject (schannel);
+		return;
+	    }
+
+	    handler = handler_factory.createSocketHandler ();
+
+	    handlers.put (handler, address);
+
+	    handler.open (schannel, this);
+
+	    // drain may have taken stock of handlers before the put
+	    if (!running)
+		removeHandler (handler);
+	} catch (final Throwable t) {
+	    logger.log (Level.SEVERE,
+			"While creating/opening SocketHandler("
+			+ handler
+			+ ")",
+			t);
+	    if (null == handler)
+		dismiss (address);
+	    else
+		removeHandler (handler);
+	    try {
+		schannel.close ();
 	    } catch (IOException x) {
 		logger.log (Level.WARNING,
-			    "While closing the channel",
+			    "While closing the connection",
 			    x);
-	    } finally {
-		channel = null;
 	    }
+	} finally {
+	    setupDone ();
 	}
+    }
+
+    // Not synchronized, see changeState
+    private void drain ()
+    {
+	final long deadline = System.currentTimeMillis () + drain_timeout;
+	int count;
+
+	try {
+	    // the setups in flight add their handlers (or reject them)
+	    synchronized (drained) {
+		long left;
+
+		while (setups.get () > 0
+		       && (left = deadline
+			   - System.currentTimeMillis ()) > 0)
+		    drained.wait (left);
+	    }
+
+	    count = handlers.size ();
+	    if (drain_timeout > 0 && count > 0) {
+		logger.info ("Draining " + count + " connection(s)");
+
+		for (final SocketHandler handler : handlers.keySet ())
+		    handler.startClosing ();
+
+		synchronized (drained) {
+		    long left;
+
+		    while (!handlers.isEmpty ()
+			   && (left = deadline
+			       - System.currentTimeMillis ()) > 0)
+			drained.wait (left);
+		}
+	    }
+	} catch (InterruptedException x) {
+	    // swallow, close the remaining handlers now
+	} finally {
+	    if (!handlers.isEmpty ()) {
+		logger.warning ("Closing " + handlers.size ()
+				+ " connection(s) that did not drain");
+
+		for (final SocketHandler handler : handlers.keySet ())
+		    removeHandler (handler);
+	    }
+
+	    draining = false;
+	}
+    }
+
+    /* Undoes a failed start: stops the acceptor threads that started,
+       closes the selectors of the others and the channel (without
+       throwing, the failure is rethrown) */
+    private void discardAcceptors ()
+    {
+	running = false;
+
+	if (null != acceptors)
+	    for (int n = 0;n < acceptors.length;++n) {
+		if (null == acceptors[n])
+		    continue;
+
+		if (null != acceptor_threads[n] && acceptor_threads[n].isAlive ())
+		    acceptors[n].wakeup (); // its thread closes the selector
+		else
+		    try {
+			acceptors[n].close ();
+		    } catch (IOException x) {
+			logger.log (Level.WARNING,
+				    "While closing the selector",
+				    x);
+		    }
+	    }
 
-	logger.fine ("SocketListener worker thread has stopped");
+	acceptors = null;
+	acceptor_threads = null;
+
+	closeChannel ();
     }
 
-    // <<< Runnable
+    private void closeChannel ()
+    {
+	try {
+	    if (null != channel)
+		channel.close ();
+	} catch (IOException x) {
+	    logger.log (Level.WARNING,
+			"While closing the channel",
+			x);
+	} finally {
+	    channel = null;
+	}
+    }
 
     // >>> Engine
 
@@ -171,13 +678,25 @@ public class SocketListener
 	return null != channel ? State.RUNNING : State.STOPPED;
     }
 
+    /* Stopping drains the open handlers (see setDrainTimeout) once the
+       listener is stopped, without holding its lock, it cannot be
+       started again before they are drained */
     public void changeState (State new_state)
 	throws IOException
     {
-	if (new_state != currentState ()) {
+	synchronized (this) {
+	    if (new_state == currentState ())
+		return;
+
 	    switch (new_state) {
 	    case RUNNING:
-		synchronized (this) {
+		if (draining)
+		    throw new IllegalStateException
+			("The listener is still draining its connections");
+
+		{
+		    boolean started = false;
+
 		    try {
 			ServerSocket socket;
 
@@ -186,63 +705,61 @@ public class SocketListener
 			socket = channel.socket ();
 			socket.setReuseAddress (true);
 
-			socket.bind (listener_address);
+			socket.bind (listener_address, backlog);
+			channel.configureBlocking (false);
 
-			if (null == worker) {
-			    worker = new Thread (this, toString ());
-			    if (!(worker.isDaemon ()))
-				worker.setDaemon (true);
+			acceptors = new Acceptor[acceptor_count];
+			acceptor_threads = new Thread[acceptor_count];
+			for (int n = 0;n < acceptor_count;++n) {
+			    acceptors[n] = new Acceptor (channel);
+			    acceptor_threads[n] = new Thread
+				(acceptors[n], toString () + "#" + n);
+			    acceptor_threads[n].setDaemon (true);
 			}
 
-			worker.start ();
-		    } catch (IOException x) {
-			try {
-			    if (null != channel)
-				channel.close ();
-			} finally {
-			    channel = null;
-			}
+			accept_tokens = max_accept_rate;
+			accept_tokens_at = System.nanoTime ();
 
-			throw x;
-		    } catch (IllegalThreadStateException x) {
-			try {
-			    if (null != channel)
-				channel.close ();
-			} finally {
-			    channel = null;
-			}
+			running = true;
+			for (final Thread t : acceptor_threads)
+			    t.start ();
 
-			throw x;
+			started = true;
+		    } finally {
+			if (!started)
+			    discardAcceptors ();
 		    }
 		}
 		break;
 	    case STOPPED:
-		synchronized (this) {
-		    if (null != channel)
-			channel.close ();
-		}
+		running = false;
 
-		{
-		    boolean stopped = false;
-
-		    try {
-			for (int i = 0;!stopped && i < 10;++i) {
-			    Thread.sleep (500);
+		for (final Acceptor acceptor : acceptors)
+		    acceptor.wakeup ();
 
-			    synchronized (this) {
-				stopped = null == channel;
-			    }
-			}
-		    } catch (InterruptedException x) {
-			// swallow
+		try {
+		    for (final Thread t : acceptor_threads) {
+			t.join (5000);
+			if (t.isAlive ())
+			    logger.severe ("Could not stop acceptor thread("
+					   + t.getName () + ")");
 		    }
-
-		    if (!stopped)
-			logger.severe ("Could not stop worker thread");
+		} catch (InterruptedException x) {
+		    // swallow
 		}
+
+		acceptors = null;
+		acceptor_threads = null;
+
+		closeChannel (); // no new connections from here on
+
+		draining = true;
 		break;
 	    }
 	}
+
+	if (State.STOPPED == new_state)
+	    drain ();
     }
 
     // <<< Engine
@@ -0,0 +1,10 @@
+package damd.rainbow.net.pipeline;
+
+import java.nio.ByteBuffer;
+
+/* What a buffer is given back to once it is no longer used, see
+   BufferedOutbound.write (ByteBuffer, BufferOwner) */
+public interface BufferOwner
+{
+    public void release (ByteBuffer buffer);
+}
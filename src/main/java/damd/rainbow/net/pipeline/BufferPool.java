@@ -0,0 +1,273 @@
+package damd.rainbow.net.pipeline;
+
+import java.util.Map;
+import java.util.IdentityHashMap;
+import java.util.ArrayDeque;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.nio.ByteBuffer;
+
+/* Pool of direct ByteBuffers, grouped per size class (powers of two
+   between min_size and max_size). The buffers of a size class are
+   sliced from larger direct slabs so the (slow) direct allocation is
+   only done once in a while and memory is never handed back to the GC.
+
+   A lease larger than max_size, or a lease that would make the pool
+   grow beyond its capacity, is served by a non pooled heap buffer
+   which is simply dropped when it is released. */
+public class BufferPool
+    implements BufferOwner
+{
+    private static class Lease
+    {
+	public final long leased_at; // in milliseconds
+	public final Throwable trace; // null if leak detection is off
+
+	public Lease (final boolean trace)
+	{
+	    leased_at = System.currentTimeMillis ();
+	    this.trace = trace ? new Throwable ("Leased here") : null;
+	}
+    }
+
+    private static BufferPool default_pool = null;
+
+    public static BufferPool getDefault ()
+    {
+	synchronized (BufferPool.class) {
+	    if (null == default_pool)
+		default_pool = new BufferPool ("default");
+	}
+
+	return default_pool;
+    }
+
+    private Logger logger;
+
+    private final String name;
+
+    private int min_shift;
+    private int max_shift;
+    private int slab_size;
+    private long capacity; // in bytes, total of all slabs
+
+    private boolean leak_detection;
+
+    private ArrayDeque<ByteBuffer>[] free_buffers; // per size class
+    private final Map<ByteBuffer, Lease> leases; // identity
+
+    private long allocated; // in bytes, total of all slabs
+    private long unpooled_leases;
+
+    public BufferPool (final String name)
+    {
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	leases = new IdentityHashMap<> ();
+
+	slab_size = 1 << 20;
+	capacity = 64L << 20;
+
+	setSizeClasses (512, 64 << 10);
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    private static int shiftFor (final int size)
+    {
+	return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros (size - 1);
+    }
+
+    @SuppressWarnings ({"unchecked", "rawtypes"})
+    public synchronized void setSizeClasses (final int min_size,
+					     final int max_size)
+	throws IllegalStateException
+    {
+	if (!leases.isEmpty ())
+	    throw new IllegalStateException
+		("Size classes can not be changed while buffers are leased");
+
+	if (min_size < 1 || max_size < min_size)
+	    throw new IllegalArgumentException
+		("min_size(" + min_size + ") max_size(" + max_size + ")");
+
+	min_shift = shiftFor (min_size);
+	max_shift = shiftFor (max_size);
+
+	free_buffers = new ArrayDeque[max_shift - min_shift + 1];
+	for (int n = 0;n < free_buffers.length;++n)
+	    free_buffers[n] = new ArrayDeque<> ();
+
+	allocated = 0L;
+    }
+
+    public synchronized void setSlabSize (final int slab_size)
+    {
+	if (slab_size < 1)
+	    throw new IllegalArgumentException
+		("slab_size(" + slab_size + ") must be >= 1");
+
+	this.slab_size = slab_size;
+    }
+
+    public synchronized long getCapacity ()
+    {
+	return capacity;
+    }
+
+    public synchronized void setCapacity (final long capacity)
+    {
+	this.capacity = capacity;
+    }
+
+    public synchronized boolean leakDetection ()
+    {
+	return leak_detection;
+    }
+
+    /* When enabled the stack trace of each lease is kept so
+       reportLeaks can tell who leased a buffer that was never
+       released (costly, meant for debugging). */
+    public synchronized void setLeakDetection (final boolean leak_detection)
+    {
+	this.leak_detection = leak_detection;
+    }
+
+    public synchronized long getAllocated ()
+    {
+	return allocated;
+    }
+
+    public synchronized int getLeasedCount ()
+    {
+	return leases.size ();
+    }
+
+    public synchronized long getUnpooledLeaseCount ()
+    {
+	return unpooled_leases;
+    }
+
+    private void addSlab (final int shift)
+    {
+	final int buffer_size = 1 << shift;
+	final int count = Math.max (1, slab_size / buffer_size);
+	final ByteBuffer slab;
+
+	slab = ByteBuffer.allocateDirect (count * buffer_size);
+	allocated += slab.capacity ();
+
+	for (int n = 0;n < count;++n) {
+	    slab.limit ((n + 1) * buffer_size);
+	    slab.position (n * buffer_size);
+	    free_buffers[shift - min_shift].offerLast (slab.slice ());
+	}
+
+	logger.fine ("Allocated slab of " + count
+		     + " buffer(s) of " + buffer_size
+		     + " byte(s), pool now holds " + allocated + " byte(s)");
+    }
+
+    /* Returns a cleared buffer with a capacity of at least size
+       bytes, it should be given back with release. */
+    public ByteBuffer lease (final int size)
+    {
+	final int shift = Math.max (min_shift, shiftFor (size));
+
+	synchronized (this) {
+	    if (shift <= max_shift) {
+		final ArrayDeque<ByteBuffer> free =
+		    free_buffers[shift - min_shift];
+
+		if (free.isEmpty ()
+		    && allocated + Math.max (slab_size, 1 << shift)
+		    <= capacity)
+		    addSlab (shift);
+
+		if (!free.isEmpty ()) {
+		    final ByteBuffer buffer = free.pollLast ();
+
+		    buffer.clear ();
+		    leases.put (buffer, new Lease (leak_detection));
+
+		    return buffer;
+		}
+	    }
+
+	    ++unpooled_leases;
+	}
+
+	return ByteBuffer.allocate (size);
+    }
+
+    // >>> BufferOwner
+
+    public void release (final ByteBuffer buffer)
+    {
+	if (null == buffer || !buffer.isDirect ())
+	    return; // not pooled, leave it to the GC
+
+	synchronized (this) {
+	    if (null == leases.remove (buffer)) {
+		logger.log (Level.WARNING,
+			    "Releasing a buffer that is not leased"
+			    + " (released twice or not from this pool)",
+			    new Throwable ("Released here"));
+		return;
+	    }
+
+	    free_buffers[shiftFor (buffer.capacity ()) - min_shift]
+		.offerLast (buffer);
+	}
+    }
+
+    // <<< BufferOwner
+
+    /* Returns buffer (in write mode) or, if it has less than extra
+       bytes left, a larger buffer holding the same data (buffer is
+       then released) */
+    public ByteBuffer grow (final ByteBuffer buffer, final int extra)
+    {
+	final ByteBuffer grown;
+
+	if (buffer.remaining () >= extra)
+	    return buffer;
+
+	grown = lease (buffer.position () + extra);
+	buffer.flip ();
+	grown.put (buffer);
+	release (buffer);
+
+	logger.fine ("Grew buffer to " + grown.capacity () + " byte(s)");
+
+	return grown;
+    }
+
+    /* Logs all buffers which have been leased for more than min_age
+       milliseconds, returns the number of buffers logged. */
+    public synchronized int reportLeaks (final long min_age)
+    {
+	final long now = System.currentTimeMillis ();
+	int count = 0;
+
+	for (final Lease lease : leases.values ())
+	    if (now - lease.leased_at >= min_age) {
+		logger.log (Level.WARNING,
+			    "Buffer leased "
+			    + (now - lease.leased_at)
+			    + " ms ago has not been released",
+			    lease.trace);
+		++count;
+	    }
+
+	return count;
+    }
+}
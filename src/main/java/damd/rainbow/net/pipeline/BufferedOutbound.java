@@ -1,31 +1,71 @@
 package damd.rainbow.net.pipeline;
 
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Deque;
 import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+import java.io.IOException;
 
 import java.nio.ByteBuffer;
 
+import java.nio.channels.GatheringByteChannel;
+
 public class BufferedOutbound
 {
+    public interface Listener
+    {
+	/* Invoked with OUTBOUND_WRITABLE or OUTBOUND_UNWRITABLE when
+	   the writability changes (never while holding the lock of
+	   the BufferedOutbound). */
+	public void handleOutboundEvent (PipelineEvent event);
+    }
+
+    /* What to do with a write that would make the buffered data
+       exceed the hard limit */
+    public enum Overflow
+    {
+	KEEP,      // buffer it anyway
+	DROP,      // drop the write (write returns false)
+	INVALIDATE // drop the write and all buffered data, and signal
+		   // OUTBOUND_OVERFLOW to the source
+    }
+
+    private static final int MAX_GATHER = 64; // buffers per write
+
     private final PipelineSource source;
     private final Deque<ByteBuffer> buffers;
+    private final Map<ByteBuffer, BufferOwner> owners; // identity, see write
     private boolean auto_flush;
 
+    private ByteBuffer[] gather; // lazily created, see writeOutbound
+
+    private long queued; // in bytes, sum of remaining of buffers
+
+    private long low_watermark; // in bytes
+    private long high_watermark; // in bytes, <= 0 ~ no watermarks
+    private long hard_limit; // in bytes, <= 0 ~ no limit
+    private Overflow overflow;
+
+    private boolean writable;
+    private boolean closed; // see close
+    private Listener listener;
+
     public BufferedOutbound (final PipelineSource source)
     {
 	this.source = source; // may be null
 	buffers = new ArrayDeque<> ();
+	owners = new IdentityHashMap<> ();
 	auto_flush = true;
+
+	overflow = Overflow.KEEP;
+	writable = true;
     }
 
     public synchronized int remaining ()
     {
-	int remaining = 0;
-
-	for (final ByteBuffer buffer : buffers)
-	    remaining += buffer.remaining ();
-
-	return remaining;
+	return (int) Math.min (queued, Integer.MAX_VALUE);
     }
 
     public synchronized boolean autoFlush ()
@@ -42,39 +82,246 @@ public class BufferedOutbound
 	return prev;
     }
 
+    public synchronized void setListener (final Listener listener)
+    {
+	this.listener = listener;
+    }
+
+    /* Once more than high bytes are buffered isWritable returns false
+       (and the listener is notified) until the buffered data drops
+       to low bytes or less. A write that would make the buffered data
+       exceed hard bytes is handled according to overflow. */
+    public synchronized void setLimits (final long low,
+					final long high,
+					final long hard,
+					final Overflow overflow)
+    {
+	if (null == overflow)
+	    throw new NullPointerException ("overflow");
+
+	if (high > 0 && low > high)
+	    throw new IllegalArgumentException
+		("low(" + low + ") must be <= high(" + high + ")");
+
+	low_watermark = low;
+	high_watermark = high;
+	hard_limit = hard;
+	this.overflow = overflow;
+    }
+
+    public synchronized boolean isWritable ()
+    {
+	return writable && !closed;
+    }
+
+    // Returns the event to notify (outside the lock) or null
+    private PipelineEvent updateWritability ()
+    {
+	if (high_watermark <= 0)
+	    return null;
+
+	if (writable && queued > high_watermark) {
+	    writable = false;
+	    return PipelineEvent.OUTBOUND_UNWRITABLE;
+	}
+
+	if (!writable && queued <= low_watermark) {
+	    writable = true;
+	    return PipelineEvent.OUTBOUND_WRITABLE;
+	}
+
+	return null;
+    }
+
+    private void notifyListener (final PipelineEvent event)
+    {
+	final Listener listener;
+
+	if (null == event)
+	    return;
+
+	synchronized (this) {
+	    listener = this.listener;
+	}
+
+	if (null != listener)
+	    listener.handleOutboundEvent (event);
+    }
+
     public synchronized void flush ()
     {
-	if (null != source)
+	if (null != source && !closed)
 	    source.handleTargetEvent (PipelineEvent.OUTBOUND_AVAILABLE);
     }
 
-    public synchronized void write (final ByteBuffer input)
+    // Gives buffer back to its owner, if it was written with one
+    private void release (final ByteBuffer buffer)
     {
-	if (null != input && input.hasRemaining ())
-	    buffers.offerLast (input);
+	final BufferOwner owner;
 
-	if (null != source && auto_flush)
-	    flush ();
+	if (!owners.isEmpty () && null != (owner = owners.remove (buffer)))
+	    owner.release (buffer);
     }
 
-    public synchronized void giveOutbound (final ByteBuffer output)
+    // Drops all buffered data
+    public synchronized void clear ()
     {
-	ByteBuffer src;
+	for (final ByteBuffer buffer : buffers)
+	    release (buffer);
+
+	buffers.clear ();
+	queued = 0L;
+    }
+
+    /* Drops all buffered data and everything written from now on, a
+       write racing with close still gives its input back to its
+       owner */
+    public synchronized void close ()
+    {
+	closed = true;
+	clear ();
+    }
+
+    public synchronized boolean isClosed ()
+    {
+	return closed;
+    }
+
+    /* Returns false if input has been dropped (see Overflow and
+       close) */
+    public boolean write (final ByteBuffer input)
+    {
+	return write (input, null);
+    }
+
+    /* As write (input), input is released to owner (e.g. its
+       BufferPool) once it has been written (or dropped) */
+    public boolean write (final ByteBuffer input, final BufferOwner owner)
+    {
+	PipelineEvent event = null;
+	boolean overflowed = false;
+	boolean kept = false;
+	boolean dropped = false; // after close
+
+	synchronized (this) {
+	    if (closed)
+		dropped = true;
+	    else if (null != input && input.hasRemaining ()) {
+		if (hard_limit > 0
+		    && queued + input.remaining () > hard_limit
+		    && Overflow.KEEP != overflow) {
+		    overflowed = true;
+
+		    if (Overflow.INVALIDATE == overflow)
+			clear ();
+		} else {
+		    if (null != owner)
+			owners.put (input, owner);
+		    buffers.offerLast (input);
+		    kept = true;
+		    queued += input.remaining ();
+		    event = updateWritability ();
+		}
+	    }
+
+	    if (!overflowed && null != source && auto_flush)
+		flush ();
+	}
+
+	if (!kept && null != owner)
+	    owner.release (input);
+
+	if (dropped)
+	    return false;
+
+	notifyListener (event);
 
-	while (output.hasRemaining ()
-	       && null != (src = buffers.pollFirst ())) {
-	    if (src.remaining () > output.remaining ()) {
-		// We can only partially put the src into output
-		int prev_limit = src.limit ();
+	if (overflowed && Overflow.INVALIDATE == overflow && null != source)
+	    source.handleTargetEvent (PipelineEvent.OUTBOUND_OVERFLOW);
 
-		src.limit (src.position () + output.remaining ());
-		output.put (src);
-		src.limit (prev_limit);
+	return !overflowed;
+    }
+
+    public void giveOutbound (final ByteBuffer output)
+    {
+	final PipelineEvent event;
+
+	synchronized (this) {
+	    final int start = output.position ();
+	    ByteBuffer src;
+
+	    while (output.hasRemaining ()
+		   && null != (src = buffers.pollFirst ())) {
+		if (src.remaining () > output.remaining ()) {
+		    // We can only partially put the src into output
+		    int prev_limit = src.limit ();
+
+		    src.limit (src.position () + output.remaining ());
+		    output.put (src);
+		    src.limit (prev_limit);
 
-		if (src.hasRemaining ()) // put remainder back on queue
-		    buffers.offerFirst (src);
-	    } else
-		output.put (src);
+		    if (src.hasRemaining ()) // put remainder back on queue
+			buffers.offerFirst (src);
+		} else {
+		    output.put (src);
+		    release (src);
+		}
+	    }
+
+	    queued -= output.position () - start;
+	    event = updateWritability ();
 	}
+
+	notifyListener (event);
+    }
+
+    /* Writes the queued buffers to channel without copying them
+       (gathering write), returns true if not all data could be
+       written. */
+    public boolean writeOutbound (final GatheringByteChannel channel)
+	throws IOException
+    {
+	final PipelineEvent event;
+	final boolean left;
+
+	synchronized (this) {
+	    if (null == gather && !buffers.isEmpty ())
+		gather = new ByteBuffer[MAX_GATHER];
+
+	    try {
+		while (!buffers.isEmpty ()) {
+		    int count = 0, drained = 0;
+
+		    for (final ByteBuffer buffer : buffers) {
+			gather[count++] = buffer;
+			if (MAX_GATHER == count)
+			    break;
+		    }
+
+		    try {
+			queued -= channel.write (gather, 0, count);
+		    } finally {
+			Arrays.fill (gather, 0, count, null);
+		    }
+
+		    while (!buffers.isEmpty ()
+			   && !(buffers.peekFirst ().hasRemaining ())) {
+			release (buffers.pollFirst ());
+			++drained;
+		    }
+
+		    if (drained < count)
+			break; // channel did not take everything
+		}
+	    } finally {
+		event = updateWritability ();
+	    }
+
+	    left = !buffers.isEmpty ();
+	}
+
+	notifyListener (event);
+
+	return left;
     }
 }
@@ -1,5 +1,6 @@
 package damd.rainbow.net.pipeline;
 
+import java.util.List;
 import java.util.ArrayList;
 
 import java.util.logging.Level;
@@ -7,16 +8,31 @@ import java.util.logging.Logger;
 
 public class Pipeline
 {
+    // A pending insert (after != null) or removal (after == null)
+    private static class Change
+    {
+	public final PipelineNode after;
+	public final PipelineNode node;
+
+	public Change (final PipelineNode after, final PipelineNode node)
+	{
+	    this.after = after;
+	    this.node = node;
+	}
+    }
+
     private Logger logger;
     private ArrayList<PipelineNode> nodes;
     private boolean nodes_have_been_closed;
     private PipelineState state;
+    private List<Change> changes; // pending, see reconfigure
 
     public Pipeline ()
     {
 	logger = Logger.getLogger (getClass ().getName ());
 	nodes = new ArrayList<> (3);
 	state = PipelineState.CLOSED;
+	changes = new ArrayList<> ();
     }
 
     public synchronized Pipeline add (final PipelineNode node)
@@ -42,6 +58,170 @@ public class Pipeline
 	return this;
     }
 
+    /* Inserts node (which has to be both a source and a target) right
+       after the node after, e.g. a PipelineSSLHandler after the
+       PipelineSocketHandler for STARTTLS.
+
+       While the pipeline is in use the change is not applied right
+       away: the initial source is sent RECONFIGURE and it invokes
+       reconfigure once no inbound data is being handled and the
+       outbound data written so far has passed it. So whatever was
+       written before the insert does not pass node, inbound data
+       not yet handed to the nodes above does. The peer must not send
+       data meant for node before it has seen the last data written
+       before the insert (as with STARTTLS). */
+    public synchronized Pipeline insert (final PipelineNode after,
+					 final PipelineNode node)
+	throws
+	    NullPointerException,
+	    IllegalArgumentException,
+	    IllegalStateException
+    {
+	final int index;
+
+	if (null == after)
+	    throw new NullPointerException ("after");
+	if (null == node)
+	    throw new NullPointerException ("node");
+
+	if (nodes.contains (node))
+	    throw new IllegalArgumentException
+		("Node(" + node + ") already in pipeline");
+
+	index = nodes.indexOf (after);
+	if (index < 0 || index == nodes.size () - 1)
+	    throw new IllegalArgumentException
+		("Node(" + after + ") is not a source in the pipeline");
+
+	if (!(node instanceof PipelineSource
+	      && node instanceof PipelineTarget))
+	    throw new IllegalArgumentException
+		("Node(" + node + ") should be a PipelineSource and a"
+		 + " PipelineTarget");
+
+	if (isUsable ())
+	    requestChange (new Change (after, node));
+	else {
+	    node.setPipeline (this);
+	    nodes.add (index + 1, node);
+	}
+
+	return this;
+    }
+
+    /* Removes node (which may not be the initial source or the final
+       target), see insert for when this happens in a pipeline that
+       is in use. Data buffered by node is lost. */
+    public synchronized Pipeline remove (final PipelineNode node)
+	throws
+	    NullPointerException,
+	    IllegalArgumentException,
+	    IllegalStateException
+    {
+	final int index;
+
+	if (null == node)
+	    throw new NullPointerException ("node");
+
+	index = nodes.indexOf (node);
+	if (index <= 0 || index == nodes.size () - 1)
+	    throw new IllegalArgumentException
+		("Node(" + node + ") is not an intermediate node in the"
+		 + " pipeline");
+
+	if (isUsable ())
+	    requestChange (new Change (null, node));
+	else
+	    nodes.remove (index);
+
+	return this;
+    }
+
+    private void requestChange (final Change change)
+    {
+	changes.add (change);
+
+	((PipelineSource) nodes.get (0)).handleTargetEvent
+	    (PipelineEvent.RECONFIGURE);
+    }
+
+    /* Applies the pending inserts and removals, to be invoked by the
+       initial source (see RECONFIGURE) when no data is passing
+       through the pipeline */
+    public synchronized void reconfigure ()
+    {
+	try {
+	    for (final Change change : changes) {
+		if (null != change.after)
+		    applyInsert (change.after, change.node);
+		else
+		    applyRemove (change.node);
+	    }
+	} finally {
+	    changes.clear ();
+	}
+    }
+
+    private void applyInsert (final PipelineNode after,
+			      final PipelineNode node)
+    {
+	final int index = nodes.indexOf (after);
+	final PipelineSource source;
+	final PipelineTarget target;
+
+	if (index < 0 || index == nodes.size () - 1) {
+	    logger.warning ("Not inserting node(" + node + ") as node("
+			    + after + ") is no longer a source");
+	    return;
+	}
+
+	source = (PipelineSource) after;
+	target = (PipelineTarget) nodes.get (index + 1);
+
+	node.setPipeline (this);
+	((PipelineSource) node).setTarget (target);
+	((PipelineTarget) node).setSource (source);
+
+	try {
+	    for (short phase = 0;phase < 2;++phase)
+		node.openNode (phase);
+	} catch (final Throwable t) {
+	    node.closeNode ();
+	    invalidate ("While inserting node(" + node + ")", t);
+	    return;
+	}
+
+	source.setTarget ((PipelineTarget) node);
+	target.setSource ((PipelineSource) node);
+	nodes.add (index + 1, node);
+
+	logger.fine ("Inserted node(" + node + ") after node(" + after + ")");
+    }
+
+    private void applyRemove (final PipelineNode node)
+    {
+	final int index = nodes.indexOf (node);
+	final PipelineSource source;
+	final PipelineTarget target;
+
+	if (index <= 0 || index == nodes.size () - 1) {
+	    logger.warning ("Not removing node(" + node + ") as it is no"
+			    + " longer an intermediate node");
+	    return;
+	}
+
+	source = (PipelineSource) nodes.get (index - 1);
+	target = (PipelineTarget) nodes.get (index + 1);
+
+	source.setTarget (target);
+	target.setSource (source);
+	nodes.remove (index);
+
+	node.closeNode ();
+
+	logger.fine ("Removed node(" + node + ")");
+    }
+
     public synchronized PipelineState getState ()
     {
 	return state;
@@ -168,6 +348,7 @@ public class Pipeline
 	    if (PipelineState.INVALID != state)
 		setState (PipelineState.CLOSED);
 
+	    changes.clear ();
 	    nodes_have_been_closed = true;
 	}
     }
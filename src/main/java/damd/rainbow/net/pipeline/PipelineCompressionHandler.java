@@ -0,0 +1,366 @@
+package damd.rainbow.net.pipeline;
+
+import java.util.logging.Logger;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+import java.nio.ByteBuffer;
+
+/* Compresses the outbound and decompresses the inbound data of its
+   target with zlib (or raw deflate, see setFormat), e.g. for XMPP
+   stream compression (XEP-0138).
+
+   The outbound data is sync-flushed whenever the target has no more
+   data to give, i.e. once per (coalesced) flush of the target, so the
+   peer can decompress all of it without waiting for more data.
+
+   The inbound data is inflated up to max_inflated bytes per read, and
+   as long as the target does not take them, a peer exceeding it (e.g.
+   with a zlib bomb) invalidates the pipeline. While the target paused
+   the inbound data, the compressed data is left to the source. */
+public class PipelineCompressionHandler
+    implements
+	PipelineTarget,
+	PipelineSource
+{
+    private static final int CHUNK_SIZE = 8 << 10; // see scratch arrays
+
+    private Logger logger;
+
+    private Pipeline pipeline;
+    private PipelineTarget target;
+    private PipelineSource source;
+
+    private int level;
+    private boolean nowrap;
+    private int max_inflated;
+
+    private volatile boolean target_paused; // target sent PAUSE_INBOUND
+
+    private BufferPool buffer_pool;
+    private ZlibPool zlib_pool;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean unflushed; // input given to the deflater since flush
+
+    /* Deflater and Inflater only work on arrays (before Java 11) so
+       the data is copied through these */
+    private byte[] inbound_input;
+    private byte[] inbound_output;
+    private byte[] outbound_input;
+    private byte[] outbound_output;
+
+    private ByteBuffer inbound_buffer; // inflated, for the target
+    private ByteBuffer outbound_buffer; // from the target, to deflate
+    private ByteBuffer packet_outbound; // deflated, for the source
+
+    public PipelineCompressionHandler ()
+    {
+	logger = Logger.getLogger (getClass ().getName ());
+
+	level = 6;
+	max_inflated = 1 << 20;
+
+	buffer_pool = BufferPool.getDefault ();
+	zlib_pool = ZlibPool.getDefault ();
+    }
+
+    // >>> PipelineNode
+
+    public void setPipeline (final Pipeline pipeline)
+    {
+	this.pipeline = pipeline;
+    }
+
+    public void stateHasChanged (final PipelineState new_state)
+    {
+	// We do not need to do anything an a pipepline state change
+    }
+
+    public void openNode (final short phase)
+    {
+	if (0 == phase) {
+	    deflater = zlib_pool.leaseDeflater (level, nowrap);
+	    inflater = zlib_pool.leaseInflater (nowrap);
+	    unflushed = false;
+	    target_paused = false;
+
+	    inbound_input = new byte[CHUNK_SIZE];
+	    inbound_output = new byte[CHUNK_SIZE];
+	    outbound_input = new byte[CHUNK_SIZE];
+	    outbound_output = new byte[CHUNK_SIZE];
+
+	    inbound_buffer = buffer_pool.lease (CHUNK_SIZE * 2);
+	    outbound_buffer = buffer_pool.lease (CHUNK_SIZE);
+	    packet_outbound = buffer_pool.lease (CHUNK_SIZE);
+	}
+    }
+
+    public void closeNode ()
+    {
+	zlib_pool.release (deflater);
+	zlib_pool.release (inflater);
+	deflater = null;
+	inflater = null;
+
+	buffer_pool.release (inbound_buffer);
+	buffer_pool.release (outbound_buffer);
+	buffer_pool.release (packet_outbound);
+	inbound_buffer = null;
+	outbound_buffer = null;
+	packet_outbound = null;
+
+	inbound_input = inbound_output = null;
+	outbound_input = outbound_output = null;
+    }
+
+    // <<< PipelineNode
+
+    // >>> PipelineTarget
+
+    public void setSource (final PipelineSource source)
+    {
+	this.source = source;
+    }
+
+    public void handleInbound (final ByteBuffer buffer)
+	throws Exception
+    {
+	long inflated = 0L; // by this read
+
+	while (true) {
+	    final int count;
+
+	    if (inflater.needsInput ()) {
+		final int length = Math.min (buffer.remaining (),
+					     inbound_input.length);
+
+		// the source keeps the rest until the target resumes
+		if (0 == length || target_paused)
+		    break;
+
+		buffer.get (inbound_input, 0, length);
+		inflater.setInput (inbound_input, 0, length);
+	    }
+
+	    try {
+		count = inflater.inflate (inbound_output);
+	    } catch (DataFormatException x) {
+		pipeline.invalidate ("Invalid compressed data", x);
+		return;
+	    }
+
+	    if (count > 0) {
+		inflated += count;
+
+		// make room by handing over what we have, or grow
+		if (inbound_buffer.remaining () < count)
+		    deliverInbound ();
+
+		if (inflated > max_inflated
+		    || inbound_buffer.position () + count > max_inflated) {
+		    pipeline.invalidate ("Inflated data exceeds max_inflated("
+					 + max_inflated + ")",
+					 null);
+		    return;
+		}
+
+		if (inbound_buffer.remaining () < count)
+		    inbound_buffer = buffer_pool.grow (inbound_buffer, count);
+
+		inbound_buffer.put (inbound_output, 0, count);
+	    } else if (inflater.finished ()) {
+		// the peer ended the stream, a new one may follow
+		final int left = inflater.getRemaining ();
+
+		buffer.position (buffer.position () - left);
+		inflater.reset ();
+	    } else if (inflater.needsDictionary ()) {
+		pipeline.invalidate ("Compressed data needs a dictionary",
+				     null);
+		return;
+	    }
+	}
+
+	deliverInbound ();
+    }
+
+    public void giveOutbound (final ByteBuffer buffer)
+	throws Exception
+    {
+	while (drainPacket (buffer)) {
+	    final boolean drained;
+
+	    if (outbound_buffer.hasRemaining ())
+		target.giveOutbound (outbound_buffer);
+
+	    // the target did not fill the buffer, so it has no more
+	    drained = outbound_buffer.hasRemaining ();
+
+	    outbound_buffer.flip ();
+	    try {
+		while (outbound_buffer.hasRemaining ()) {
+		    final int length = Math.min (outbound_buffer.remaining (),
+						 outbound_input.length);
+
+		    outbound_buffer.get (outbound_input, 0, length);
+		    deflater.setInput (outbound_input, 0, length);
+		    deflate (Deflater.NO_FLUSH);
+		    unflushed = true;
+		}
+	    } finally {
+		outbound_buffer.compact ();
+	    }
+
+	    if (drained) {
+		if (unflushed) {
+		    deflate (Deflater.SYNC_FLUSH);
+		    unflushed = false;
+		}
+
+		drainPacket (buffer);
+		break;
+	    }
+	}
+    }
+
+    // <<< PipelineTarget
+
+    // >>> PipelineSource
+
+    public void setTarget (final PipelineTarget target)
+    {
+	this.target = target;
+    }
+
+    public void handleTargetEvent (final PipelineEvent event)
+    {
+	switch (event) {
+	case PAUSE_INBOUND:
+	    target_paused = true;
+	    break;
+	case RESUME_INBOUND:
+	    target_paused = false;
+	    break;
+	default:
+	    break;
+	}
+
+	source.handleTargetEvent (event);
+    }
+
+    // <<< PipelineSource
+
+    /* Compression level (0-9), must be set before the node is
+       opened */
+    public void setLevel (final int level)
+    {
+	if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+	    throw new IllegalArgumentException
+		("level(" + level + ") is out of range");
+
+	this.level = level;
+    }
+
+    /* zlib (the default, as XEP-0138) or raw deflate (nowrap), must
+       be set before the node is opened */
+    public void setFormat (final boolean nowrap)
+    {
+	this.nowrap = nowrap;
+    }
+
+    /* Maximum number of bytes inflated per read of the source, and
+       kept for the target until it takes them */
+    public void setMaxInflated (final int max_inflated)
+    {
+	if (max_inflated < CHUNK_SIZE)
+	    throw new IllegalArgumentException
+		("max_inflated(" + max_inflated + ") must be >= " + CHUNK_SIZE);
+
+	this.max_inflated = max_inflated;
+    }
+
+    public void setBufferPool (final BufferPool buffer_pool)
+    {
+	if (null == buffer_pool)
+	    throw new NullPointerException ("buffer_pool");
+
+	this.buffer_pool = buffer_pool;
+    }
+
+    public void setZlibPool (final ZlibPool zlib_pool)
+    {
+	if (null == zlib_pool)
+	    throw new NullPointerException ("zlib_pool");
+
+	this.zlib_pool = zlib_pool;
+    }
+
+    /* Runs the deflater (after setInput or to flush) until it needs
+       more input (NO_FLUSH) or it has output everything (SYNC_FLUSH),
+       its output is added to packet_outbound */
+    private void deflate (final int flush)
+    {
+	while (true) {
+	    final int count = deflater.deflate (outbound_output,
+						0,
+						outbound_output.length,
+						flush);
+
+	    if (count > 0) {
+		packet_outbound = buffer_pool.grow (packet_outbound, count);
+		packet_outbound.put (outbound_output, 0, count);
+	    }
+
+	    if (Deflater.NO_FLUSH == flush
+		? deflater.needsInput ()
+		: count < outbound_output.length)
+		break;
+	}
+    }
+
+    /* Moves the deflated data to buffer, returns true if all of it
+       fit */
+    private boolean drainPacket (final ByteBuffer buffer)
+    {
+	if (packet_outbound.position () > 0) {
+	    packet_outbound.flip ();
+	    try {
+		final int count = Math.min (packet_outbound.remaining (),
+					    buffer.remaining ());
+		final int prev_limit = packet_outbound.limit ();
+
+		packet_outbound.limit (packet_outbound.position () + count);
+		buffer.put (packet_outbound);
+		packet_outbound.limit (prev_limit);
+	    } finally {
+		packet_outbound.compact ();
+	    }
+	}
+
+	return 0 == packet_outbound.position ();
+    }
+
+    /* Hands the inflated data to the target, returns false if the
+       target did not take anything */
+    private boolean deliverInbound ()
+	throws Exception
+    {
+	final int before = inbound_buffer.position ();
+
+	if (0 == before)
+	    return false;
+
+	inbound_buffer.flip ();
+	try {
+	    target.handleInbound (inbound_buffer);
+	} finally {
+	    inbound_buffer.compact ();
+	}
+
+	return inbound_buffer.position () < before;
+    }
+}
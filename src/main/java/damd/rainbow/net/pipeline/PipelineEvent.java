@@ -2,6 +2,12 @@ package damd.rainbow.net.pipeline;
 
 public enum PipelineEvent
 {
-    OUTBOUND_AVAILABLE, // target -> source
-    NEED_INBOUND;       // target -> source
+    OUTBOUND_AVAILABLE,  // target -> source
+    NEED_INBOUND,        // target -> source (call handleInbound, even if empty)
+    OUTBOUND_OVERFLOW,   // target -> source (see BufferedOutbound)
+    PAUSE_INBOUND,       // target -> source (until RESUME_INBOUND)
+    RESUME_INBOUND,      // target -> source
+    RECONFIGURE,         // Pipeline -> initial source (see Pipeline.insert)
+    OUTBOUND_WRITABLE,   // BufferedOutbound -> its listener
+    OUTBOUND_UNWRITABLE; // BufferedOutbound -> its listener
 }
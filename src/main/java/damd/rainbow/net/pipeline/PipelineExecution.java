@@ -0,0 +1,12 @@
+package damd.rainbow.net.pipeline;
+
+/* Where PipelineSocketHandler lets its target handle inbound data */
+public enum PipelineExecution
+{
+    TARGET_EXECUTOR, // always on the target executor (default)
+    INLINE,          // always on the selector loop thread
+    HYBRID           /* on the selector loop thread unless handling
+			inbound data took longer than the inline
+			budget, then on the target executor until it
+			is fast again */
+}
@@ -0,0 +1,15 @@
+package damd.rainbow.net.pipeline;
+
+import java.nio.channels.GatheringByteChannel;
+
+/* A target that does not transform its outbound data can let its
+   source write it straight to the channel (without copying it in an
+   intermediate buffer first). */
+public interface PipelineGatheringTarget
+    extends PipelineTarget
+{
+    /* Returns true if there is still outbound data left (the channel
+       did not accept all of it). */
+    public boolean writeOutbound (GatheringByteChannel channel)
+	throws Exception;
+}
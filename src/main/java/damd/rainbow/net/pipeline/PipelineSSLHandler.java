@@ -1,7 +1,9 @@
 package damd.rainbow.net.pipeline;
 
-import java.util.List;
-import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import java.util.logging.Logger;
 
@@ -13,15 +15,25 @@ import java.security.SecureRandom;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import damd.rainbow.util.concurrent.TimingWheel;
 
 public class PipelineSSLHandler
     implements
 	PipelineTarget,
 	PipelineSource
 {
+    public interface HandshakeListener
+    {
+	/* Invoked (on the thread that finished the handshake) once the
+	   parameters have been negotiated, e.g. to set up the rest of
+	   the pipeline according to getApplicationProtocol */
+	public void handshakeHasFinished (PipelineSSLHandler handler);
+    }
+
     private Logger logger;
 
     private Pipeline pipeline;
@@ -30,20 +42,85 @@ public class PipelineSSLHandler
 
     private boolean client_mode;
 
-    private List<KeyManager> key_mngrs;
-    private List<TrustManager> trust_mngrs;
-    private SecureRandom secure_random;
+    private final SSLContextFactory context_factory;
+    private String peer_host; // null ~ unknown
+    private int peer_port;
     private SSLEngine engine;
 
-    private ByteBuffer inbound_buffer;
-    private ByteBuffer outbound_buffer;
+    private BufferPool buffer_pool;
+
+    private TimingWheel timing_wheel; // null ~ no handshake timeout
+    private long handshake_timeout; // in milliseconds, <= 0 ~ none
+    private final AtomicBoolean handshake_finished;
+    private HandshakeListener handshake_listener;
+    private TimingWheel.Timeout handshake_timeout_handle;
+
+    private ByteBuffer inbound_buffer; // unwrapped, for the target
+    private ByteBuffer outbound_buffer; // from the target, to wrap
+    private ByteBuffer packet_inbound; // partial record from the source
+    private ByteBuffer packet_outbound; // wrapped, for the source
+
+    private Executor task_executor; // null ~ run delegated tasks inline
+    private final Runnable delegated_tasks;
+
+    /* packet_inbound holds records the engine did not take yet (as it
+       had to wrap or run tasks first), see handleInbound */
+    private volatile boolean unwrap_pending;
 
+    // >>> guarded by this
+    private boolean tasks_running;
+    private boolean target_paused; // target sent PAUSE_INBOUND
+    private boolean source_paused; // we sent PAUSE_INBOUND to source
+    // <<< guarded by this
+
+    /* Uses a context of its own, prefer sharing an SSLContextFactory
+       between handlers so sessions can be resumed */
     public PipelineSSLHandler ()
     {
+	this (new SSLContextFactory ("private"));
+    }
+
+    public PipelineSSLHandler (final SSLContextFactory context_factory)
+    {
+	if (null == context_factory)
+	    throw new NullPointerException ("context_factory");
+
 	logger = Logger.getLogger (getClass ().getName ());
 
-	key_mngrs = new ArrayList<> ();
-	trust_mngrs = new ArrayList<> ();
+	this.context_factory = context_factory;
+
+	buffer_pool = BufferPool.getDefault ();
+
+	handshake_finished = new AtomicBoolean ();
+
+	delegated_tasks = new Runnable () {
+		public void run ()
+		{
+		    try {
+			for (Runnable task = engine.getDelegatedTask ();
+			     null != task;
+			     task = engine.getDelegatedTask ())
+			    task.run ();
+		    } catch (Throwable x) {
+			pipeline.invalidate ("While running delegated task", x);
+		    } finally {
+			synchronized (PipelineSSLHandler.this) {
+			    tasks_running = false;
+			}
+			updatePause ();
+
+			/* the engine probably wants to wrap now, which
+			   the source will not try on its own if the
+			   target keeps the inbound data paused, or to
+			   unwrap what we kept in packet_inbound (of which
+			   the source knows nothing) */
+			source.handleTargetEvent
+			    (PipelineEvent.OUTBOUND_AVAILABLE);
+			source.handleTargetEvent
+			    (PipelineEvent.NEED_INBOUND);
+		    }
+		}
+	    };
     }
 
     // >>> PipelineNode
@@ -64,26 +141,53 @@ public class PipelineSSLHandler
 	    KeyManagementException
     {
 	if (0 == phase) {
-	    final SSLContext context = SSLContext.getInstance ("TLSv1.2");
+	    engine = context_factory.createEngine (client_mode,
+						   peer_host,
+						   peer_port);
 
-	    context.init (key_mngrs.toArray (new KeyManager[0]),
-			  trust_mngrs.toArray (new TrustManager[0]),
-			  secure_random);
-	    engine = context.createSSLEngine ();
-	    engine.setUseClientMode (client_mode);
-	    if (!client_mode)
-		engine.setNeedClientAuth (false);
-
-	    inbound_buffer = ByteBuffer.allocate
+	    inbound_buffer = buffer_pool.lease
 		(engine.getSession ().getApplicationBufferSize ());
-	    outbound_buffer = ByteBuffer.allocate
+	    outbound_buffer = buffer_pool.lease
 		(engine.getSession ().getApplicationBufferSize ());
+	    packet_inbound = buffer_pool.lease
+		(engine.getSession ().getPacketBufferSize ());
+	    packet_outbound = buffer_pool.lease
+		(engine.getSession ().getPacketBufferSize ());
+
+	    handshake_finished.set (false);
+	} else if (1 == phase
+		   && null != timing_wheel
+		   && handshake_timeout > 0) {
+	    handshake_timeout_handle = timing_wheel.schedule
+		(new Runnable () {
+			public void run ()
+			{
+			    if (!handshake_finished.get ())
+				pipeline.invalidate
+				    ("Handshake did not complete within "
+				     + handshake_timeout + " ms",
+				     null);
+			}
+		    },
+		 handshake_timeout);
 	}
     }
 
     public void closeNode ()
     {
-	// TODO: implement
+	if (null != handshake_timeout_handle) {
+	    handshake_timeout_handle.cancel ();
+	    handshake_timeout_handle = null;
+	}
+
+	buffer_pool.release (inbound_buffer);
+	buffer_pool.release (outbound_buffer);
+	buffer_pool.release (packet_inbound);
+	buffer_pool.release (packet_outbound);
+	inbound_buffer = null;
+	outbound_buffer = null;
+	packet_inbound = null;
+	packet_outbound = null;
     }
 
     // <<< PipelineNode
@@ -98,57 +202,166 @@ public class PipelineSSLHandler
     public void handleInbound (final ByteBuffer buffer)
 	throws Exception
     {
-	final SSLEngineResult result;
-
-	result = engine.unwrap (buffer, inbound_buffer);
+	boolean again;
+	boolean underflow = false;
+
+	/* A single read may hold several records (or only part of
+	   one), unwrap until the input is drained or the engine
+	   really needs more data */
+	do {
+	    final ByteBuffer input;
+	    final SSLEngineResult result;
+	    final boolean from_packet = packet_inbound.position () > 0;
 
-	switch (result.getHandshakeStatus ()) {
-	case NEED_TASK:
-	    runDelegatedTasks (result);
-	    break;
-	case NEED_UNWRAP:
-	    source.handleTargetEvent (PipelineEvent.NEED_INBOUND);
-	    break;
-	case NEED_WRAP:
-	    source.handleTargetEvent (PipelineEvent.OUTBOUND_AVAILABLE);
-	    break;
-	}
+	    if (from_packet) {
+		transfer (buffer, packet_inbound);
+		packet_inbound.flip ();
+		input = packet_inbound;
+	    } else
+		input = buffer;
 
-	if (inbound_buffer.position () > 0) {
-	    inbound_buffer.flip ();
 	    try {
-		target.handleInbound (inbound_buffer);
+		result = engine.unwrap (input, inbound_buffer);
 	    } finally {
-		inbound_buffer.compact ();
+		if (from_packet)
+		    packet_inbound.compact ();
 	    }
-	}
+
+	    again = result.bytesConsumed () > 0 || result.bytesProduced () > 0;
+	    underflow = SSLEngineResult.Status.BUFFER_UNDERFLOW
+		== result.getStatus ();
+
+	    switch (result.getStatus ()) {
+	    case BUFFER_OVERFLOW:
+		// make room by handing over what we have, or grow
+		if (!deliverInbound ())
+		    inbound_buffer = buffer_pool.grow
+			(inbound_buffer,
+			 engine.getSession ().getApplicationBufferSize ());
+		again = true;
+		break;
+	    case BUFFER_UNDERFLOW:
+		/* Keep the partial record ourselves, a record may be
+		   larger than the buffer of the source */
+		packet_inbound = buffer_pool.grow
+		    (packet_inbound,
+		     Math.max (buffer.remaining (),
+			       engine.getSession ().getPacketBufferSize ()
+			       - packet_inbound.position ()));
+		again = transfer (buffer, packet_inbound) > 0 && from_packet;
+		break;
+	    case CLOSED:
+		pipeline.startClosing ();
+		again = false;
+		break;
+	    }
+
+	    switch (result.getHandshakeStatus ()) {
+	    case FINISHED:
+		handshakeFinished ();
+		break;
+	    case NEED_TASK:
+		runDelegatedTasks (result);
+		again = !tasksRunning ();
+		break;
+	    case NEED_WRAP:
+		source.handleTargetEvent (PipelineEvent.OUTBOUND_AVAILABLE);
+		break;
+	    }
+	} while (again);
+
+	/* Unless the engine wants more than we have, the records left in
+	   packet_inbound have to be unwrapped once the engine has wrapped
+	   (see giveOutbound) or run its tasks, even if the source reads
+	   nothing more */
+	unwrap_pending = packet_inbound.position () > 0 && !underflow;
+
+	deliverInbound ();
     }
 
     public void giveOutbound (final ByteBuffer buffer)
 	throws Exception
     {
-	if (outbound_buffer.hasRemaining ())
-	    target.giveOutbound (outbound_buffer);
-
-	outbound_buffer.flip ();
+	boolean again;
 
-	/* always run engine.wrap as it may produce data
-	   even if there is no data from the target */
-	try {
+	/* Records are wrapped into packet_outbound first, so a record
+	   never has to fit in what is left of buffer */
+	do {
 	    final SSLEngineResult result;
 
-	    result = engine.wrap (outbound_buffer, buffer);
+	    if (packet_outbound.position () > 0) {
+		packet_outbound.flip ();
+		try {
+		    transfer (packet_outbound, buffer);
+		} finally {
+		    packet_outbound.compact ();
+		}
+
+		if (packet_outbound.position () > 0)
+		    break; // buffer is full
+	    }
+
+	    if (outbound_buffer.hasRemaining ())
+		target.giveOutbound (outbound_buffer);
+
+	    outbound_buffer.flip ();
+
+	    /* always run engine.wrap as it may produce data
+	       even if there is no data from the target */
+	    try {
+		result = engine.wrap (outbound_buffer, packet_outbound);
+	    } finally {
+		outbound_buffer.compact ();
+	    }
+
+	    again = result.bytesConsumed () > 0 || result.bytesProduced () > 0;
+
+	    switch (result.getStatus ()) {
+	    case BUFFER_OVERFLOW:
+		packet_outbound = buffer_pool.grow
+		    (packet_outbound,
+		     engine.getSession ().getPacketBufferSize ());
+		again = true;
+		break;
+	    case CLOSED:
+		again = false;
+		break;
+	    }
 
 	    switch (result.getHandshakeStatus ()) {
+	    case FINISHED:
+		handshakeFinished ();
+		break;
 	    case NEED_TASK:
 		runDelegatedTasks (result);
+		again = !tasksRunning ();
 		break;
 	    case NEED_UNWRAP:
+		again = false; // waiting for the peer
+		break;
+	    }
+	} while (again);
+
+	if (packet_outbound.position () > 0 && buffer.hasRemaining ()) {
+	    packet_outbound.flip ();
+	    try {
+		transfer (packet_outbound, buffer);
+	    } finally {
+		packet_outbound.compact ();
+	    }
+	}
+
+	// the engine may take the records kept by handleInbound now
+	if (unwrap_pending) {
+	    switch (engine.getHandshakeStatus ()) {
+	    case NEED_WRAP:
+	    case NEED_TASK:
+		break;
+	    default:
+		unwrap_pending = false;
 		source.handleTargetEvent (PipelineEvent.NEED_INBOUND);
 		break;
 	    }
-	} finally {
-	    outbound_buffer.compact ();
 	}
     }
 
@@ -163,41 +376,222 @@ public class PipelineSSLHandler
 
     public void handleTargetEvent (final PipelineEvent event)
     {
-	source.handleTargetEvent (event);
+	switch (event) {
+	case PAUSE_INBOUND:
+	case RESUME_INBOUND:
+	    synchronized (this) {
+		target_paused = PipelineEvent.PAUSE_INBOUND == event;
+	    }
+	    updatePause ();
+	    break;
+	default:
+	    source.handleTargetEvent (event);
+	    break;
+	}
     }
 
     // <<< PipelineSource
 
+    /* Runs the (expensive) delegated tasks of the handshake on
+       executor instead of on the thread that happens to call
+       handleInbound or giveOutbound (which can be a selector loop).
+       The inbound data is paused while the tasks are running. */
+    public void setTaskExecutor (final Executor executor)
+    {
+	task_executor = executor;
+    }
+
+    public void setBufferPool (final BufferPool buffer_pool)
+    {
+	if (null == buffer_pool)
+	    throw new NullPointerException ("buffer_pool");
+
+	this.buffer_pool = buffer_pool;
+    }
+
+    /* The handshake has to complete within timeout milliseconds
+       (checked by wheel) or the pipeline is invalidated */
+    public void setHandshakeTimeout (final TimingWheel wheel,
+				     final long timeout)
+    {
+	timing_wheel = wheel;
+	handshake_timeout = timeout;
+    }
+
+    public void setHandshakeListener (final HandshakeListener listener)
+    {
+	handshake_listener = listener;
+    }
+
+    public boolean isHandshakeFinished ()
+    {
+	return handshake_finished.get ();
+    }
+
+    /* The negotiated session, null until the handshake finished */
+    public SSLSession getSession ()
+    {
+	return handshake_finished.get () ? engine.getSession () : null;
+    }
+
+    public String getProtocol ()
+    {
+	final SSLSession session = getSession ();
+
+	return null == session ? null : session.getProtocol ();
+    }
+
+    public String getCipherSuite ()
+    {
+	final SSLSession session = getSession ();
+
+	return null == session ? null : session.getCipherSuite ();
+    }
+
+    /* The protocol negotiated through ALPN, null until the handshake
+       finished and an empty string if none was negotiated */
+    public String getApplicationProtocol ()
+    {
+	return handshake_finished.get ()
+	    ? engine.getApplicationProtocol ()
+	    : null;
+    }
+
+    private void handshakeFinished ()
+    {
+	final HandshakeListener listener = handshake_listener;
+
+	/* TLSv1.3 may report FINISHED more than once, possibly from a
+	   delegated task and the I/O thread at the same time */
+	if (!handshake_finished.compareAndSet (false, true))
+	    return;
+
+	logger.fine ("Handshake finished protocol(" + getProtocol ()
+		     + ") cipher_suite(" + getCipherSuite ()
+		     + ") application_protocol(" + getApplicationProtocol ()
+		     + ")");
+
+	if (null != listener)
+	    listener.handshakeHasFinished (this);
+    }
+
     public void setClientMode (final boolean client_mode)
     {
 	this.client_mode = client_mode;
     }
 
+    /* Host and port of the peer, used by a client to resume a
+       session with the same peer */
+    public void setPeer (final String host, final int port)
+    {
+	peer_host = host;
+	peer_port = port;
+    }
+
+    public SSLContextFactory getContextFactory ()
+    {
+	return context_factory;
+    }
+
     public void addKeyManagers (final KeyManager[] key_mngrs)
     {
-	for (final KeyManager key_mngr : key_mngrs)
-	    this.key_mngrs.add (key_mngr);
+	context_factory.addKeyManagers (key_mngrs);
     }
 
     public void addTrustManagers (final TrustManager[] trust_mngrs)
     {
-	for (final TrustManager trust_mngr : trust_mngrs)
-	    this.trust_mngrs.add (trust_mngr);
+	context_factory.addTrustManagers (trust_mngrs);
     }
 
     public void setSecureRandom (final SecureRandom rnd)
     {
-	this.secure_random = rnd;
+	context_factory.setSecureRandom (rnd);
+    }
+
+    /* Copies as much of src as fits in dst, returns the number of
+       bytes copied */
+    private static int transfer (final ByteBuffer src, final ByteBuffer dst)
+    {
+	final int count = Math.min (src.remaining (), dst.remaining ());
+	final int prev_limit = src.limit ();
+
+	src.limit (src.position () + count);
+	dst.put (src);
+	src.limit (prev_limit);
+
+	return count;
+    }
+
+    /* Hands the unwrapped data to the target, returns false if the
+       target did not take anything */
+    private boolean deliverInbound ()
+	throws Exception
+    {
+	final int before = inbound_buffer.position ();
+
+	if (0 == before)
+	    return false;
+
+	inbound_buffer.flip ();
+	try {
+	    target.handleInbound (inbound_buffer);
+	} finally {
+	    inbound_buffer.compact ();
+	}
+
+	return inbound_buffer.position () < before;
+    }
+
+    private synchronized boolean tasksRunning ()
+    {
+	return tasks_running;
+    }
+
+    /* Tells the source to pause (or resume) the inbound data when
+       either the target wants it paused or delegated tasks are
+       running */
+    private void updatePause ()
+    {
+	final boolean pause;
+
+	synchronized (this) {
+	    pause = tasks_running || target_paused;
+	    if (pause == source_paused)
+		return;
+	    source_paused = pause;
+	}
+
+	source.handleTargetEvent (pause
+				  ? PipelineEvent.PAUSE_INBOUND
+				  : PipelineEvent.RESUME_INBOUND);
     }
 
     private void runDelegatedTasks (final SSLEngineResult result)
     {
 	switch (result.getHandshakeStatus ()) {
 	case NEED_TASK:
-	    for (Runnable task = engine.getDelegatedTask ();
-		 null != task;
-		 task = engine.getDelegatedTask ())
-		task.run ();
+	    if (null == task_executor) {
+		for (Runnable task = engine.getDelegatedTask ();
+		     null != task;
+		     task = engine.getDelegatedTask ())
+		    task.run ();
+	    } else {
+		synchronized (this) {
+		    if (tasks_running)
+			return;
+		    tasks_running = true;
+		}
+		updatePause ();
+
+		try {
+		    task_executor.execute (delegated_tasks);
+		} catch (RejectedExecutionException x) {
+		    synchronized (this) {
+			tasks_running = false;
+		    }
+		    pipeline.invalidate ("Could not run delegated tasks", x);
+		}
+	    }
 	    break;
 	}
     }
@@ -1,8 +1,9 @@
 package damd.rainbow.net.pipeline;
 
-import java.util.concurrent.Future;
 import java.util.concurrent.ExecutorService;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,55 +11,194 @@ import java.io.IOException;
 
 import java.nio.ByteBuffer;
 
-import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 
 import damd.rainbow.net.SocketListener;
 import damd.rainbow.net.SocketHandler;
+import damd.rainbow.net.SelectorLoop;
+import damd.rainbow.net.SelectorLoopGroup;
+
+import damd.rainbow.util.concurrent.TimingWheel;
 
 public class PipelineSocketHandler
     implements
 	SocketHandler,
-	Runnable,
+	SelectorLoop.Handler,
 	PipelineSource
 {
     private Logger logger;
 
     private String id;
 
-    private final ExecutorService select_executor;
+    private final SelectorLoopGroup loops;
     private final ExecutorService target_executor;
 
+    private BufferPool buffer_pool;
+    private int buffer_size;
+
+    private volatile PipelineExecution execution;
+    private volatile long inline_budget; // in nanoseconds
+
+    private TimingWheel timing_wheel; // null ~ no timeouts
+    private long stream_open_timeout; // in milliseconds, <= 0 ~ none
+    private long idle_read_timeout; // in milliseconds, <= 0 ~ none
+    private long idle_write_timeout; // in milliseconds, <= 0 ~ none
+
+    private volatile long last_read_at; // in milliseconds
+    private volatile long write_blocked_since; // in milliseconds, 0 ~ not
+
     private Pipeline pipeline;
     private PipelineTarget target;
+    private PipelineGatheringTarget gathering_target; // null ~ copy
 
     private SocketListener listener; // sychronized on 'this' for assignment
     private SocketChannel channel; // synchronized on 'this' for assignment
 
-    private Future<?> select_future; // synchronized on 'this' for assignment
+    private volatile SelectorLoop loop;
+
+    private final AtomicBoolean update_pending;
+    private volatile boolean inbound_being_processed;
+    private volatile boolean offload_inbound; // see HYBRID
+    private volatile boolean inbound_paused; // see PAUSE_INBOUND
+    private volatile boolean inbound_needed; // see NEED_INBOUND
+    private volatile boolean reconfigure_pending; // see RECONFIGURE
+
+    private final Runnable update_task;
+    private final Runnable inbound_task;
+    private final Runnable close_task;
+    private final Runnable stream_open_check;
+    private final Runnable idle_read_check;
+    private final Runnable idle_write_check;
 
-    private Selector channel_selector; // not synchronized
+    private volatile TimingWheel.Timeout stream_open_timeout_handle;
+    private volatile TimingWheel.Timeout idle_read_timeout_handle;
+    private volatile TimingWheel.Timeout idle_write_timeout_handle;
 
-    // >>> select thread (~ select_future) only, no synchronization
+    // >>> loop thread (~ loop) only, no synchronization
 
     private ByteBuffer inbound_buffer;
-    private ByteBuffer outbound_buffer;
+    private ByteBuffer outbound_buffer; // null if gathering_target
 
     private SelectionKey selection_key;
 
-    private Future<?> target_future;
+    private boolean closed;
+    private boolean finished; // pipeline closed and buffers released
 
-    // <<< select thread
+    // <<< loop thread
 
-    public PipelineSocketHandler (final ExecutorService select_executor,
+    public PipelineSocketHandler (final SelectorLoopGroup loops,
 				  final ExecutorService target_executor)
     {
+	if (null == loops)
+	    throw new NullPointerException ("loops");
+
 	logger = Logger.getLogger (getClass ().getName ());
 
-	this.select_executor = select_executor;
+	this.loops = loops;
 	this.target_executor = target_executor;
+
+	buffer_pool = BufferPool.getDefault ();
+	buffer_size = 16 << 10;
+
+	execution = PipelineExecution.TARGET_EXECUTOR;
+	inline_budget = 1000000L; // 1 ms
+
+	update_pending = new AtomicBoolean ();
+
+	update_task = new Runnable () {
+		public void run ()
+		{
+		    update_pending.set (false);
+		    try {
+			if (closed)
+			    finish ();
+			else
+			    update ();
+		    } catch (Throwable x) {
+			handleLoopClosed (x);
+		    }
+		}
+	    };
+
+	inbound_task = new Runnable () {
+		public void run ()
+		{
+		    try {
+			handleInbound (inbound_buffer);
+		    } finally {
+			inbound_being_processed = false;
+			scheduleUpdate ();
+		    }
+		}
+	    };
+
+	close_task = new Runnable () {
+		public void run ()
+		{
+		    shutdown ();
+		}
+	    };
+
+	// The checks below run on the thread of the timing_wheel
+
+	stream_open_check = new Runnable () {
+		public void run ()
+		{
+		    if (null != loop
+			&& PipelineState.OPEN == pipeline.getState ())
+			pipeline.invalidate
+			    ("Stream was not opened within "
+			     + stream_open_timeout + " ms",
+			     null);
+		}
+	    };
+
+	idle_read_check = new Runnable () {
+		public void run ()
+		{
+		    final long now = System.currentTimeMillis ();
+		    final long idle;
+
+		    if (null == loop)
+			return;
+
+		    if (inbound_paused) // we are not reading, not the peer
+			last_read_at = now;
+
+		    idle = now - last_read_at;
+		    if (idle >= idle_read_timeout) {
+			logger.info ("No inbound data for " + idle
+				     + " ms, closing");
+			pipeline.startClosing ();
+		    } else
+			idle_read_timeout_handle = timing_wheel.schedule
+			    (this, idle_read_timeout - idle);
+		}
+	    };
+
+	idle_write_check = new Runnable () {
+		public void run ()
+		{
+		    final long since = write_blocked_since;
+		    final long blocked;
+
+		    if (null == loop)
+			return;
+
+		    blocked = (0L == since
+			       ? 0L
+			       : System.currentTimeMillis () - since);
+		    if (blocked >= idle_write_timeout)
+			pipeline.invalidate
+			    ("Outbound data could not be written for "
+			     + blocked + " ms",
+			     null);
+		    else
+			idle_write_timeout_handle = timing_wheel.schedule
+			    (this, idle_write_timeout - blocked);
+		}
+	    };
     }
 
     public String toString ()
@@ -66,6 +206,161 @@ public class PipelineSocketHandler
 	return getClass ().getName () + "(id(" + id + "))";
     }
 
+    public synchronized void setBufferPool (final BufferPool buffer_pool)
+    {
+	if (null == buffer_pool)
+	    throw new NullPointerException ("buffer_pool");
+
+	this.buffer_pool = buffer_pool;
+    }
+
+    /* Size of the inbound and outbound buffer (each) leased from the
+       buffer pool when the node is opened. */
+    public synchronized void setBufferSize (final int buffer_size)
+    {
+	this.buffer_size = buffer_size;
+    }
+
+    public PipelineExecution getExecution ()
+    {
+	return execution;
+    }
+
+    /* INLINE (or HYBRID) avoids the thread hops to and from the
+       target executor, but the target then runs on the selector loop
+       thread and must never block as it would stall all the other
+       channels of that loop. */
+    public void setExecution (final PipelineExecution execution)
+    {
+	if (null == execution)
+	    throw new NullPointerException ("execution");
+
+	this.execution = execution;
+    }
+
+    public long getInlineBudget ()
+    {
+	return inline_budget;
+    }
+
+    /* Time (in nanoseconds) handling inbound data may take in
+       HYBRID execution before it is moved to the target executor. */
+    public void setInlineBudget (final long inline_budget)
+    {
+	this.inline_budget = inline_budget;
+    }
+
+    private void handleInbound (final ByteBuffer buffer)
+    {
+	final long start = System.nanoTime ();
+
+	buffer.flip ();
+	try {
+	    target.handleInbound (buffer);
+	} catch (Throwable x) {
+	    pipeline.invalidate ("While handling inbound", x);
+	} finally {
+	    buffer.compact ();
+	}
+
+	if (PipelineExecution.HYBRID == execution)
+	    offload_inbound = System.nanoTime () - start > inline_budget;
+    }
+
+    /* A target which does not transform its outbound data is written
+       to the channel directly, other targets give their outbound data
+       to outbound_buffer (which has to be empty when retargeting) */
+    private void retarget ()
+    {
+	gathering_target = (target instanceof PipelineGatheringTarget
+			    ? (PipelineGatheringTarget) target
+			    : null);
+
+	if (null == gathering_target && null == outbound_buffer)
+	    outbound_buffer = buffer_pool.lease (buffer_size);
+	else if (null != gathering_target && null != outbound_buffer) {
+	    buffer_pool.release (outbound_buffer);
+	    outbound_buffer = null;
+	}
+    }
+
+    private boolean handleInboundInline ()
+    {
+	switch (execution) {
+	case INLINE:
+	    return true;
+	case HYBRID:
+	    return !offload_inbound;
+	default:
+	    return false;
+	}
+    }
+
+    /* All timeouts are in milliseconds (<= 0 ~ no timeout):
+       - stream_open: the pipeline must become VALID within this time
+       - idle_read: no inbound data within this time starts closing
+         the pipeline
+       - idle_write: pending outbound data the socket did not accept
+         any of within this time invalidates the pipeline
+       The timeouts are checked by wheel (shared by all handlers). */
+    public synchronized void setTimeouts (final TimingWheel wheel,
+					  final long stream_open,
+					  final long idle_read,
+					  final long idle_write)
+    {
+	timing_wheel = wheel;
+	stream_open_timeout = stream_open;
+	idle_read_timeout = idle_read;
+	idle_write_timeout = idle_write;
+    }
+
+    // loop thread only
+    private void startTimeouts ()
+    {
+	if (null == timing_wheel)
+	    return;
+
+	last_read_at = System.currentTimeMillis ();
+	write_blocked_since = 0L;
+
+	if (stream_open_timeout > 0)
+	    stream_open_timeout_handle = timing_wheel.schedule
+		(stream_open_check, stream_open_timeout);
+
+	if (idle_read_timeout > 0)
+	    idle_read_timeout_handle = timing_wheel.schedule
+		(idle_read_check, idle_read_timeout);
+
+	if (idle_write_timeout > 0)
+	    idle_write_timeout_handle = timing_wheel.schedule
+		(idle_write_check, idle_write_timeout);
+    }
+
+    // loop thread only
+    private void cancelTimeouts ()
+    {
+	for (final TimingWheel.Timeout timeout
+		 : new TimingWheel.Timeout[] {
+		     stream_open_timeout_handle,
+		     idle_read_timeout_handle,
+		     idle_write_timeout_handle
+		 })
+	    if (null != timeout)
+		timeout.cancel ();
+
+	stream_open_timeout_handle = null;
+	idle_read_timeout_handle = null;
+	idle_write_timeout_handle = null;
+    }
+
+    private void scheduleUpdate ()
+    {
+	final SelectorLoop loop = this.loop;
+
+	if (null != loop && update_pending.compareAndSet (false, true))
+	    loop.execute (update_task);
+    }
+
     // >>> PipelineNode
 
     public synchronized void setPipeline (final Pipeline pipeline)
@@ -75,11 +370,9 @@ public class PipelineSocketHandler
 	this.pipeline = pipeline;
     }
 
-    public synchronized void stateHasChanged (final PipelineState new_state)
+    public void stateHasChanged (final PipelineState new_state)
     {
-	if (null != channel_selector
-	    && null != select_future && !(select_future.isDone ()))
-	    channel_selector.wakeup ();
+	scheduleUpdate ();
     }
 
     public synchronized void openNode (final short phase)
@@ -90,20 +383,32 @@ public class PipelineSocketHandler
 
 	switch (phase) {
 	case 0:
-	    inbound_buffer = ByteBuffer.allocateDirect (20480);
-	    outbound_buffer = ByteBuffer.allocateDirect (20480);
-
-	    channel_selector = Selector.open ();
-	    selection_key = channel.register (channel_selector,
-					      SelectionKey.OP_READ);
+	    inbound_buffer = buffer_pool.lease (buffer_size);
+	    retarget ();
+
+	    closed = false;
+	    finished = false;
+	    inbound_paused = false;
+	    reconfigure_pending = false;
+	    loop = loops.next ();
 	    break;
 	case 1:
-	    select_future = select_executor.submit (this);
+	    loop.register (channel, SelectionKey.OP_READ, this,
+			   new Runnable () {
+			       public void run ()
+			       {
+				   logger.fine ("Starting to handle socket");
+
+				   selection_key = loop.keyFor (channel);
+				   startTimeouts ();
+				   update_task.run ();
+			       }
+			   });
 	    break;
 	}
     }
 
-    public synchronized void closeNode ()
+    public void closeNode ()
     {
 	try {
 	    close ();
@@ -121,13 +426,30 @@ public class PipelineSocketHandler
 	this.target = target;
     }
 
-    public synchronized void handleTargetEvent (final PipelineEvent event)
+    public void handleTargetEvent (final PipelineEvent event)
     {
 	switch (event) {
 	case NEED_INBOUND:
+	    inbound_needed = true;
+	    scheduleUpdate ();
+	    break;
 	case OUTBOUND_AVAILABLE:
-	    if (null != select_future && !(select_future.isDone ()))
-		channel_selector.wakeup ();
+	    scheduleUpdate ();
+	    break;
+	case PAUSE_INBOUND:
+	    inbound_paused = true;
+	    scheduleUpdate ();
+	    break;
+	case RESUME_INBOUND:
+	    inbound_paused = false;
+	    scheduleUpdate ();
+	    break;
+	case RECONFIGURE:
+	    reconfigure_pending = true;
+	    scheduleUpdate ();
+	    break;
+	case OUTBOUND_OVERFLOW:
+	    pipeline.invalidate ("Outbound data exceeded its limit", null);
 	    break;
 	}
     }
@@ -140,7 +462,7 @@ public class PipelineSocketHandler
 				   final SocketListener listener)
 	throws IOException
     {
-	if (null != select_future && !(select_future.isDone ()))
+	if (null != this.channel)
 	    throw new IllegalStateException ("Already open");
 
 	if (channel.isBlocking ())
@@ -170,37 +492,81 @@ public class PipelineSocketHandler
 	pipeline.open ();
     }
 
-    public synchronized void close ()
+    public void close ()
 	throws IOException
     {
-	/* The thread (~ select_future) handles the connection, ask
-	   it to stop (if it is not already stopped). */
-	if (null != channel_selector
-	    && null != select_future && !(select_future.isDone ()))
-	    channel_selector.close ();
+	final SelectorLoop loop = this.loop;
+
+	/* The loop handles the connection, ask it to stop handling
+	   it (if it is not already stopped). */
+	if (null != loop)
+	    loop.execute (close_task);
+	else
+	    release ();
+    }
+
+    public void startClosing ()
+    {
+	pipeline.startClosing ();
     }
 
     // <<< SocketHandler
 
-    // >>> Runnable
+    // >>> SelectorLoop.Handler
 
-    private void cleanup ()
+    public void handleSelect (final SelectionKey key)
+	throws Exception
     {
-	inbound_buffer = null;
-	outbound_buffer = null;
+	if (closed)
+	    return;
 
-	if (null != channel_selector) {
+	if (key.isReadable ()) {
+	    assert (!inbound_being_processed);
+	    final int read_count;
+
+	    read_count = channel.read (inbound_buffer);
+
+	    if (read_count < 0) { // end of stream
+		shutdown ();
+		return;
+	    }
+
+	    if (read_count > 0 && null != timing_wheel)
+		last_read_at = System.currentTimeMillis ();
+	}
+
+	if (key.isWritable () && null != timing_wheel)
+	    write_blocked_since = System.currentTimeMillis (); // progress
+
+	// gathering_target is written by update
+	if (key.isWritable ()
+	    && null == gathering_target
+	    && outbound_buffer.position () > 0) {
+	    outbound_buffer.flip ();
 	    try {
-		channel_selector.close ();
-	    } catch (IOException x) {
-		logger.log (Level.WARNING,
-			    "While closing channel_selector",
-			    x);
+		channel.write (outbound_buffer);
 	    } finally {
-		channel_selector = null;
+		outbound_buffer.compact ();
 	    }
 	}
 
+	update ();
+    }
+
+    public void handleLoopClosed (final Throwable cause)
+    {
+	if (cause instanceof IOException)
+	    logger.log (Level.WARNING, "While interacting with channel", cause);
+	else if (null != cause)
+	    logger.log (Level.SEVERE, "While interacting with channel", cause);
+
+	shutdown ();
+    }
+
+    // <<< SelectorLoop.Handler
+
+    private void release ()
+    {
 	synchronized (this) {
 	    if (null != listener) {
 		listener.removeHandler (this);
@@ -221,119 +587,129 @@ public class PipelineSocketHandler
 	}
     }
 
-    private boolean isInboundBufferBeingProcessed ()
+    // loop thread only
+    private void shutdown ()
     {
-	return null != target_future && !(target_future.isDone ());
-    }
+	if (closed)
+	    return;
 
-    private boolean select ()
-	throws
-	    IOException,
-	    Exception
-    {
-	boolean keep_going = pipeline.isUsable ();
-	boolean read = false, write = false;
+	closed = true;
 
-	/* Defensive check, keep_going should never be false
-	   at this spot */
-	assert (keep_going);
-	if (!keep_going)
-	    return keep_going;
-
-	if (!isInboundBufferBeingProcessed ()
-	    && inbound_buffer.position () > 0) {
-	    target_future = target_executor.submit
-		(new Runnable () {
-			public void run ()
-			{
-			    inbound_buffer.flip ();
-			    try {
-				target.handleInbound (inbound_buffer);
-			    } catch (Throwable x) {
-				pipeline.invalidate
-				    ("While handling inbound", x);
-			    } finally {
-				inbound_buffer.compact ();
-				channel_selector.wakeup ();
-			    }
-			}
-		    });
+	if (null != selection_key) {
+	    selection_key.cancel ();
+	    selection_key = null;
 	}
 
-	if (outbound_buffer.hasRemaining ())
-	    target.giveOutbound (outbound_buffer);
+	release ();
 
-	write = outbound_buffer.position () > 0;
+	/* The target may still be using the inbound_buffer, in which
+	   case we finish as soon as the inbound_task is done */
+	if (!inbound_being_processed)
+	    finish ();
+    }
 
-	if (PipelineState.CLOSING == pipeline.getState ()) {
-	    /* We do not read anymore, but we maybe we stil need to:
-	       - flush our outbound_buffer
-	       - wait for target_future to finish */
-	    if (!write && !isInboundBufferBeingProcessed ())
-		keep_going = false;
-	    else
-		read = false;
-	} else if (!isInboundBufferBeingProcessed ())
-	    read = true;
+    // loop thread only
+    private void finish ()
+    {
+	if (finished)
+	    return;
 
-	selection_key.interestOps
-	    ((read ? SelectionKey.OP_READ : 0)
-	     + (write ? SelectionKey.OP_WRITE : 0));
+	finished = true;
 
-	channel_selector.selectedKeys ().clear ();
+	cancelTimeouts ();
 
-	if (keep_going
-	    && channel_selector.select (read || write ? 0 : 1000) > 0) {
+	try {
+	    pipeline.close ();
+	} catch (Throwable x) {
+	    logger.log (Level.WARNING, "While closing pipeline", x);
+	}
 
-	    if (selection_key.isReadable ()) {
-		assert (!isInboundBufferBeingProcessed ());
-		final int read_count;
+	buffer_pool.release (inbound_buffer);
+	buffer_pool.release (outbound_buffer);
+	inbound_buffer = null;
+	outbound_buffer = null;
 
-		read_count = channel.read (inbound_buffer);
+	loop = null;
 
-		if (read_count < 0) // end of stream
-		    keep_going = false;
-	    }
+	logger.fine ("Stopped handling socket");
+    }
 
-	    if (selection_key.isWritable ()
-		&& outbound_buffer.position () > 0) {
-		outbound_buffer.flip ();
-		try {
-		    channel.write (outbound_buffer);
-		} finally {
-		    outbound_buffer.compact ();
+    // loop thread only
+    private void update ()
+	throws Exception
+    {
+	boolean read = false, write = false;
+
+	if (closed || null == selection_key)
+	    return;
+
+	if (!pipeline.isUsable ()) {
+	    shutdown ();
+	    return;
+	}
+
+	/* While the target paused the inbound data we neither read nor
+	   hand it what we have already read, neither do we while the
+	   pipeline is waiting to be reconfigured (what we have read is
+	   meant for the reconfigured pipeline). A target that asked for
+	   it (NEED_INBOUND, e.g. to go on with data it kept itself) gets
+	   the inbound data even if there is none. */
+	if (!inbound_being_processed
+	    && !inbound_paused
+	    && !reconfigure_pending
+	    && (inbound_buffer.position () > 0 || inbound_needed)) {
+	    inbound_needed = false;
+	    if (handleInboundInline ()) {
+		handleInbound (inbound_buffer);
+
+		if (!pipeline.isUsable ()) {
+		    shutdown ();
+		    return;
 		}
+	    } else {
+		inbound_being_processed = true;
+		target_executor.execute (inbound_task);
 	    }
 	}
 
-	return keep_going;
-    }
+	if (null != gathering_target)
+	    write = gathering_target.writeOutbound (channel);
+	else {
+	    if (outbound_buffer.hasRemaining ())
+		target.giveOutbound (outbound_buffer);
 
-    public void run ()
-    {
-	logger.fine ("Starting to handle socket");
+	    write = outbound_buffer.position () > 0;
+	}
 
-	try {
-	    while (pipeline.isUsable ())
-		if (!select ())
-		    break;
-	} catch (ClosedSelectorException x) {
-	    // swallow, requested to stop
-	} catch (IOException x) {
-	    logger.log (Level.WARNING, "While interacting with channel", x);
-	} catch (Throwable x) {
-	    logger.log (Level.SEVERE, "While interacting with channel", x);
-	} finally {
-	    try {
-		cleanup ();
-		pipeline.close ();
-	    } catch (Throwable x) {
-		logger.log (Level.WARNING, "While closing pipeline", x);
-	    }
+	if (!write)
+	    write_blocked_since = 0L;
+	else if (0L == write_blocked_since && null != timing_wheel)
+	    write_blocked_since = System.currentTimeMillis ();
+
+	/* Reconfigure once all outbound data of the current pipeline
+	   has been written and no inbound data is being handled */
+	if (reconfigure_pending && !write && !inbound_being_processed) {
+	    reconfigure_pending = false;
+	    pipeline.reconfigure ();
+	    retarget ();
+	    scheduleUpdate (); // for the reconfigured pipeline
 	}
 
-	logger.fine ("Stopped handling socket");
-    }
+	if (PipelineState.CLOSING == pipeline.getState ()) {
+	    /* We do not read anymore, but we maybe we stil need to:
+	       - flush our outbound_buffer
+	       - wait for inbound_task to finish */
+	    if (!write && !inbound_being_processed) {
+		shutdown ();
+		return;
+	    }
+	} else if (!inbound_being_processed
+		   && !inbound_paused
+		   && !reconfigure_pending)
+	    read = true;
 
-    // <<< Runnable
+	selection_key.interestOps
+	    ((read ? SelectionKey.OP_READ : 0)
+	     + (write ? SelectionKey.OP_WRITE : 0));
+    }
 }
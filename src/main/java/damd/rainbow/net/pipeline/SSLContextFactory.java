@@ -0,0 +1,308 @@
+package damd.rainbow.net.pipeline;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import java.util.logging.Logger;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLEngine;
+
+/* Builds a single SSLContext from the key and trust managers and shares
+   it between all PipelineSSLHandler's using this factory. As the
+   session caches belong to the context, sharing it lets clients
+   resume a session (abbreviated handshake) instead of doing a full
+   handshake for every connection.
+
+   Changing the configuration drops the context, the next engine is
+   created from a freshly built one.
+
+   By default TLSv1.3 is preferred over TLSv1.2 (when the provider
+   supports it), the server picks the cipher suite in our order and
+   the AEAD suites come first: AES-GCM where the CPU most likely has
+   AES instructions, ChaCha20-Poly1305 elsewhere. */
+public class SSLContextFactory
+{
+    private Logger logger;
+
+    private final String name;
+
+    private String protocol;
+    private String[] protocols; // enabled, in order of preference
+    private String[] cipher_suites; // null ~ default order
+    private boolean hardware_aes;
+    private String[] application_protocols; // ALPN, null ~ none
+
+    private String[] enabled_protocols; // see enable
+    private String[] enabled_cipher_suites; // see enable
+
+    private List<KeyManager> key_mngrs;
+    private List<TrustManager> trust_mngrs;
+    private SecureRandom secure_random;
+
+    private int session_cache_size; // < 0 ~ provider default, 0 ~ no limit
+    private int session_timeout; // in seconds, < 0 ~ provider default
+
+    private SSLContext context; // null ~ not built (yet)
+
+    public SSLContextFactory (final String name)
+    {
+	final String arch = System.getProperty ("os.arch", "");
+
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	protocol = "TLS";
+	protocols = new String[] { "TLSv1.3", "TLSv1.2" };
+
+	hardware_aes = arch.equals ("amd64")
+	    || arch.equals ("x86_64")
+	    || arch.equals ("aarch64");
+
+	key_mngrs = new ArrayList<> ();
+	trust_mngrs = new ArrayList<> ();
+
+	session_cache_size = -1;
+	session_timeout = -1;
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    public synchronized void setProtocol (final String protocol)
+    {
+	if (null == protocol)
+	    throw new NullPointerException ("protocol");
+
+	this.protocol = protocol;
+	context = null;
+    }
+
+    /* The protocols to enable, in order of preference, protocols the
+       provider does not support are skipped */
+    public synchronized void setProtocols (final String... protocols)
+    {
+	if (null == protocols || 0 == protocols.length)
+	    throw new IllegalArgumentException ("No protocols");
+
+	this.protocols = protocols.clone ();
+	context = null;
+    }
+
+    /* The cipher suites to enable, in order of preference (null
+       restores the default order) */
+    public synchronized void setCipherSuites (final String... cipher_suites)
+    {
+	this.cipher_suites = null == cipher_suites
+	    ? null
+	    : cipher_suites.clone ();
+	context = null;
+    }
+
+    /* Whether the default order prefers AES-GCM (true) or
+       ChaCha20-Poly1305 (false), guessed from os.arch */
+    public synchronized void setHardwareAes (final boolean hardware_aes)
+    {
+	this.hardware_aes = hardware_aes;
+	context = null;
+    }
+
+    /* The application protocols offered (client) or accepted (server)
+       through ALPN, in order of preference */
+    public synchronized void setApplicationProtocols
+	(final String... application_protocols)
+    {
+	this.application_protocols = null == application_protocols
+	    ? null
+	    : application_protocols.clone ();
+    }
+
+    public synchronized void addKeyManagers (final KeyManager[] key_mngrs)
+    {
+	for (final KeyManager key_mngr : key_mngrs)
+	    this.key_mngrs.add (key_mngr);
+	context = null;
+    }
+
+    public synchronized void addTrustManagers (final TrustManager[] trust_mngrs)
+    {
+	for (final TrustManager trust_mngr : trust_mngrs)
+	    this.trust_mngrs.add (trust_mngr);
+	context = null;
+    }
+
+    public synchronized void setSecureRandom (final SecureRandom rnd)
+    {
+	this.secure_random = rnd;
+	context = null;
+    }
+
+    /* Maximum number of sessions kept (per side) for resumption, 0
+       means no limit */
+    public synchronized void setSessionCacheSize (final int size)
+    {
+	session_cache_size = size;
+	if (null != context)
+	    configure (context);
+    }
+
+    /* Number of seconds a cached session can be resumed, 0 means no
+       limit */
+    public synchronized void setSessionTimeout (final int timeout)
+    {
+	session_timeout = timeout;
+	if (null != context)
+	    configure (context);
+    }
+
+    private void configure (final SSLContext context)
+    {
+	for (final SSLSessionContext sessions
+		 : new SSLSessionContext[] {
+		     context.getServerSessionContext (),
+		     context.getClientSessionContext () }) {
+	    if (null == sessions)
+		continue;
+
+	    if (session_cache_size >= 0)
+		sessions.setSessionCacheSize (session_cache_size);
+	    if (session_timeout >= 0)
+		sessions.setSessionTimeout (session_timeout);
+	}
+    }
+
+    private static int cipherRank (final String suite,
+				   final boolean hardware_aes)
+    {
+	final boolean gcm = suite.contains ("_GCM_");
+	final boolean chacha = suite.contains ("CHACHA20");
+	int rank;
+
+	if (gcm)
+	    rank = hardware_aes ? 0 : 1;
+	else if (chacha)
+	    rank = hardware_aes ? 1 : 0;
+	else
+	    rank = 2;
+
+	// forward secrecy (TLSv1.3 suites always have it)
+	if (!(suite.startsWith ("TLS_AES_")
+	      || suite.startsWith ("TLS_CHACHA20_")
+	      || suite.startsWith ("TLS_ECDHE_")
+	      || suite.startsWith ("TLS_DHE_")))
+	    rank += 3;
+
+	return rank;
+    }
+
+    private void enable (final SSLContext context)
+    {
+	final SSLParameters supported = context.getSupportedSSLParameters ();
+	final List<String> supported_protocols =
+	    Arrays.asList (supported.getProtocols ());
+	final List<String> enabled = new ArrayList<> ();
+
+	for (final String p : protocols)
+	    if (supported_protocols.contains (p))
+		enabled.add (p);
+	if (enabled.isEmpty ())
+	    throw new IllegalStateException
+		("None of the protocols" + Arrays.toString (protocols)
+		 + " is supported");
+	enabled_protocols = enabled.toArray (new String[0]);
+
+	if (null != cipher_suites)
+	    enabled_cipher_suites = cipher_suites.clone ();
+	else {
+	    final List<String> suites = new ArrayList<> (Arrays.asList
+		(context.getDefaultSSLParameters ().getCipherSuites ()));
+	    final boolean hardware_aes = this.hardware_aes;
+
+	    // stable, so the provider order is kept within a rank
+	    Collections.sort (suites, new Comparator<String> () {
+		    public int compare (final String a, final String b)
+		    {
+			return Integer.compare (cipherRank (a, hardware_aes),
+						cipherRank (b, hardware_aes));
+		    }
+		});
+	    enabled_cipher_suites = suites.toArray (new String[0]);
+	}
+    }
+
+    public synchronized SSLContext getContext ()
+	throws
+	    NoSuchAlgorithmException,
+	    KeyManagementException
+    {
+	if (null == context) {
+	    final SSLContext context = SSLContext.getInstance (protocol);
+
+	    context.init (key_mngrs.toArray (new KeyManager[0]),
+			  trust_mngrs.toArray (new TrustManager[0]),
+			  secure_random);
+	    configure (context);
+	    enable (context);
+
+	    logger.fine ("Built SSLContext for protocol(" + protocol + ")"
+			 + " protocols" + Arrays.toString (enabled_protocols)
+			 + " cipher_suites"
+			 + Arrays.toString (enabled_cipher_suites));
+
+	    this.context = context;
+	}
+
+	return context;
+    }
+
+    /* peer_host and peer_port are only hints (peer_host may be null),
+       a client needs them to find a session it can resume. */
+    public SSLEngine createEngine (final boolean client_mode,
+				   final String peer_host,
+				   final int peer_port)
+	throws
+	    NoSuchAlgorithmException,
+	    KeyManagementException
+    {
+	final SSLEngine engine;
+	final SSLParameters parameters;
+
+	synchronized (this) {
+	    final SSLContext context = getContext ();
+
+	    engine = null == peer_host
+		? context.createSSLEngine ()
+		: context.createSSLEngine (peer_host, peer_port);
+
+	    engine.setUseClientMode (client_mode);
+
+	    parameters = engine.getSSLParameters ();
+	    parameters.setProtocols (enabled_protocols);
+	    parameters.setCipherSuites (enabled_cipher_suites);
+	    parameters.setUseCipherSuitesOrder (true);
+	    if (null != application_protocols)
+		parameters.setApplicationProtocols (application_protocols);
+	    if (!client_mode)
+		parameters.setNeedClientAuth (false);
+	}
+
+	engine.setSSLParameters (parameters);
+
+	return engine;
+    }
+}
@@ -0,0 +1,85 @@
+package damd.rainbow.net.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.nio.ByteBuffer;
+
+/* Data (e.g. a serialized stanza) that is written to many outbounds
+   without being copied: each of them gets a read-only view (with its
+   own position) of the same buffer. The buffer is reference counted,
+   the creator holds the first reference and every view another one;
+   the buffer is released to its pool when the last reference is
+   released, i.e. once the creator is done handing out views and every
+   view has been written (or dropped).
+
+   The buffer may not be changed once it is shared. */
+public class SharedBuffer
+    implements BufferOwner
+{
+    private final ByteBuffer buffer; // flipped
+    private final BufferPool buffer_pool; // null ~ not pooled
+    private final AtomicInteger references;
+
+    public SharedBuffer (final ByteBuffer buffer, final BufferPool buffer_pool)
+    {
+	if (null == buffer)
+	    throw new NullPointerException ("buffer");
+
+	this.buffer = buffer;
+	this.buffer_pool = buffer_pool;
+
+	references = new AtomicInteger (1);
+    }
+
+    public int remaining ()
+    {
+	return buffer.remaining ();
+    }
+
+    /* Returns a read-only view of the data, it holds a reference until
+       it is released (see BufferedOutbound.write (ByteBuffer,
+       BufferOwner)) */
+    public ByteBuffer view ()
+    {
+	retain ();
+
+	return buffer.asReadOnlyBuffer ();
+    }
+
+    /* Adds a reference (e.g. to keep the data for a later write), to
+       be released with release () */
+    public SharedBuffer retain ()
+    {
+	int count;
+
+	do {
+	    count = references.get ();
+	    if (count <= 0)
+		throw new IllegalStateException ("Buffer has been released");
+	} while (!references.compareAndSet (count, count + 1));
+
+	return this;
+    }
+
+    // Releases the reference of the creator (or one added by retain)
+    public void release ()
+    {
+	final int count = references.decrementAndGet ();
+
+	if (0 == count) {
+	    if (null != buffer_pool)
+		buffer_pool.release (buffer);
+	} else if (count < 0)
+	    throw new IllegalStateException ("Buffer released too often");
+    }
+
+    // >>> BufferOwner
+
+    // Releases the reference of view
+    public void release (final ByteBuffer view)
+    {
+	release ();
+    }
+
+    // <<< BufferOwner
+}
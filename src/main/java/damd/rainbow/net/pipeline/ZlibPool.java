@@ -0,0 +1,172 @@
+package damd.rainbow.net.pipeline;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.ArrayDeque;
+
+import java.util.logging.Logger;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Pool of Deflater's (per level and format) and Inflater's (per
+   format). Each of them holds a fair amount of native memory that is
+   only freed by end (or finalization), so they are reused instead of
+   being created for every connection. At most max_idle instances are
+   kept per kind, the surplus is ended when it is released. */
+public class ZlibPool
+{
+    private static ZlibPool default_pool = null;
+
+    public static ZlibPool getDefault ()
+    {
+	synchronized (ZlibPool.class) {
+	    if (null == default_pool)
+		default_pool = new ZlibPool ("default");
+	}
+
+	return default_pool;
+    }
+
+    private Logger logger;
+
+    private final String name;
+
+    private int max_idle; // per kind
+
+    private final Map<Integer, ArrayDeque<Deflater>> deflaters;
+    private final Map<Deflater, Integer> deflater_keys; // leased, identity
+    private final ArrayDeque<Inflater>[] inflaters; // [nowrap ? 1 : 0]
+    private final Map<Inflater, Boolean> inflater_nowraps; // leased, identity
+
+    @SuppressWarnings ({"unchecked", "rawtypes"})
+    public ZlibPool (final String name)
+    {
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	max_idle = 256;
+
+	deflaters = new HashMap<> ();
+	deflater_keys = new IdentityHashMap<> ();
+	inflaters = new ArrayDeque[] { new ArrayDeque<Inflater> (),
+				       new ArrayDeque<Inflater> () };
+	inflater_nowraps = new IdentityHashMap<> ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    public synchronized void setMaxIdle (final int max_idle)
+    {
+	this.max_idle = max_idle;
+    }
+
+    private static Integer deflaterKey (final int level, final boolean nowrap)
+    {
+	return level * 2 + (nowrap ? 1 : 0);
+    }
+
+    /* Returns a reset Deflater, it should be given back with
+       release. nowrap selects raw deflate instead of zlib. */
+    public Deflater leaseDeflater (final int level, final boolean nowrap)
+    {
+	final Integer key = deflaterKey (level, nowrap);
+	Deflater deflater;
+
+	synchronized (this) {
+	    final ArrayDeque<Deflater> idle = deflaters.get (key);
+
+	    deflater = null == idle ? null : idle.pollLast ();
+	}
+
+	if (null == deflater)
+	    deflater = new Deflater (level, nowrap);
+
+	synchronized (this) {
+	    deflater_keys.put (deflater, key);
+	}
+
+	return deflater;
+    }
+
+    public void release (final Deflater deflater)
+    {
+	final Integer key;
+
+	if (null == deflater)
+	    return;
+
+	deflater.reset ();
+
+	synchronized (this) {
+	    key = deflater_keys.remove (deflater);
+
+	    if (null != key) {
+		ArrayDeque<Deflater> idle = deflaters.get (key);
+
+		if (null == idle)
+		    deflaters.put (key, idle = new ArrayDeque<> ());
+
+		if (idle.size () < max_idle) {
+		    idle.offerLast (deflater);
+		    return;
+		}
+	    } else
+		logger.warning ("Releasing a Deflater that is not leased");
+	}
+
+	deflater.end ();
+    }
+
+    /* Returns a reset Inflater, it should be given back with
+       release. */
+    public Inflater leaseInflater (final boolean nowrap)
+    {
+	Inflater inflater;
+
+	synchronized (this) {
+	    inflater = inflaters[nowrap ? 1 : 0].pollLast ();
+	}
+
+	if (null == inflater)
+	    inflater = new Inflater (nowrap);
+
+	synchronized (this) {
+	    inflater_nowraps.put (inflater, nowrap);
+	}
+
+	return inflater;
+    }
+
+    public void release (final Inflater inflater)
+    {
+	final Boolean nowrap;
+
+	if (null == inflater)
+	    return;
+
+	inflater.reset ();
+
+	synchronized (this) {
+	    nowrap = inflater_nowraps.remove (inflater);
+
+	    if (null != nowrap) {
+		final ArrayDeque<Inflater> idle = inflaters[nowrap ? 1 : 0];
+
+		if (idle.size () < max_idle) {
+		    idle.offerLast (inflater);
+		    return;
+		}
+	    } else
+		logger.warning ("Releasing an Inflater that is not leased");
+	}
+
+	inflater.end ();
+    }
+}
@@ -0,0 +1,193 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* Runs the stanzas of one stream (see XmlStanzaHandler.setDispatch) on
+   an executor, in lanes: the tasks of a lane run one after the other,
+   in the order they were dispatched, different lanes run in parallel.
+   A task goes to the lane of its key, or to the first lane if it has
+   none.
+
+   Reading is paused (through handler) once max_pending tasks are
+   waiting or running and resumed when half of them are done.
+
+   When the executor rejects a lane, its tasks are dropped and the
+   pipeline of handler is invalidated: the tasks are never run on the
+   calling thread, that is the parsing (often the selector) thread. */
+class StanzaDispatcher
+{
+    private static final int BATCH = 64; // tasks per lane run
+
+    private class Lane
+	implements
+	    Runnable
+    {
+	private final ArrayDeque<Runnable> tasks;
+	private boolean scheduled; // guarded by this
+
+	public Lane ()
+	{
+	    tasks = new ArrayDeque<> ();
+	}
+
+	public void add (final Runnable task)
+	{
+	    final boolean schedule;
+
+	    synchronized (this) {
+		tasks.offerLast (task);
+		schedule = !scheduled;
+		scheduled = true;
+	    }
+
+	    if (schedule)
+		execute (this);
+	}
+
+	public void run ()
+	{
+	    for (int n = 0;n < BATCH;++n) {
+		final Runnable task;
+
+		synchronized (this) {
+		    if (null == (task = tasks.pollFirst ())) {
+			scheduled = false;
+			return;
+		    }
+		}
+
+		try {
+		    task.run ();
+		} catch (RuntimeException x) {
+		    logger.log (Level.WARNING, "While dispatching a stanza", x);
+		} finally {
+		    done (1);
+		}
+	    }
+
+	    // give the other lanes (and streams) a turn
+	    execute (this);
+	}
+
+	// Drops the tasks of a rejected lane, returns their number
+	public synchronized int drop ()
+	{
+	    final int count = tasks.size ();
+
+	    tasks.clear ();
+	    scheduled = false;
+
+	    return count;
+	}
+    }
+
+    private Logger logger;
+
+    private final Executor executor;
+    private final XmlStanzaHandler handler;
+    private final int max_pending;
+
+    private final Lane[] lanes;
+
+    private int pending; // guarded by this
+    private boolean paused;
+    private List<Runnable> when_drained;
+
+    public StanzaDispatcher (final Executor executor,
+			     final int lane_count,
+			     final int max_pending,
+			     final XmlStanzaHandler handler)
+    {
+	logger = Logger.getLogger (getClass ().getName ());
+
+	this.executor = executor;
+	this.max_pending = max_pending;
+	this.handler = handler;
+
+	lanes = new Lane[lane_count];
+	for (int l = 0;l < lane_count;++l)
+	    lanes[l] = new Lane ();
+    }
+
+    private void execute (final Lane lane)
+    {
+	try {
+	    executor.execute (lane);
+	} catch (RejectedExecutionException x) {
+	    logger.severe ("Executor rejected the stanzas, dropping them");
+	    handler.dispatchRejected (x);
+	    done (lane.drop ());
+	}
+    }
+
+    public void dispatch (final String key, final Runnable task)
+    {
+	final boolean pause;
+
+	synchronized (this) {
+	    pause = ++pending >= max_pending && !paused;
+	    if (pause)
+		paused = true;
+	}
+
+	if (pause)
+	    handler.setDispatchPaused (true);
+
+	lanes[null == key ? 0 : (key.hashCode () & 0x7fffffff) % lanes.length]
+	    .add (task);
+    }
+
+    // count tasks are done (or dropped)
+    private void done (final int count)
+    {
+	final boolean resume;
+	List<Runnable> drained = null;
+
+	if (0 == count)
+	    return;
+
+	synchronized (this) {
+	    pending -= count;
+
+	    resume = paused && pending <= max_pending / 2;
+	    if (resume)
+		paused = false;
+
+	    if (0 == pending && null != when_drained) {
+		drained = when_drained;
+		when_drained = null;
+	    }
+	}
+
+	if (resume)
+	    handler.setDispatchPaused (false);
+
+	if (null != drained)
+	    for (final Runnable task : drained)
+		task.run ();
+    }
+
+    /* Runs task once all dispatched tasks are done, right away (on the
+       calling thread) if there are none */
+    public void whenDrained (final Runnable task)
+    {
+	synchronized (this) {
+	    if (pending > 0) {
+		if (null == when_drained)
+		    when_drained = new ArrayList<> ();
+		when_drained.add (task);
+		return;
+	    }
+	}
+
+	task.run ();
+    }
+}
@@ -0,0 +1,327 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Logger;
+
+import org.w3c.dom.Document;
+
+import damd.rainbow.behavior.Engine;
+
+import damd.rainbow.xml.Stanza;
+
+import damd.rainbow.net.pipeline.BufferPool;
+import damd.rainbow.net.pipeline.SharedBuffer;
+
+/* Routes stanzas between the streams of this process: an address
+   (e.g. a JID) is mapped to the XmlStanzaDelegator of the stream that
+   registered it. Routing a stanza only queues it (see
+   XmlStanzaDelegator.write (SharedBuffer)) and flushes the target
+   stream, the sender never waits for it to be written.
+
+   The routing table is a ConcurrentHashMap, lookups take no lock at
+   all and updates only lock the bin of their address. A full JID
+   (local@domain/resource) without a route of its own is routed to its
+   bare JID (local@domain).
+
+   Every route counts what has been delivered through it; streams that
+   are not writable (above their high watermark) still get the stanza,
+   but it is counted as congested; stanzas the stream dropped are not
+   counted. Stanzas without a route are counted by the router. */
+public class StanzaRouter
+    implements
+	Engine
+{
+    public static class Route
+    {
+	private final String address;
+	private final XmlStanzaDelegator delegator;
+	private final long registered_at; // in milliseconds
+
+	private final LongAdder delivered;
+	private final LongAdder delivered_bytes;
+	private final LongAdder congested;
+
+	private Route (final String address, final XmlStanzaDelegator delegator)
+	{
+	    this.address = address;
+	    this.delegator = delegator;
+	    registered_at = System.currentTimeMillis ();
+
+	    delivered = new LongAdder ();
+	    delivered_bytes = new LongAdder ();
+	    congested = new LongAdder ();
+	}
+
+	public String toString ()
+	{
+	    return getClass ().getName () + "(address(" + address + ")"
+		+ " delivered(" + delivered.sum () + ")"
+		+ " bytes(" + delivered_bytes.sum () + ")"
+		+ " congested(" + congested.sum () + "))";
+	}
+
+	public String getAddress ()
+	{
+	    return address;
+	}
+
+	public XmlStanzaDelegator getDelegator ()
+	{
+	    return delegator;
+	}
+
+	public long getRegisteredAt ()
+	{
+	    return registered_at;
+	}
+
+	public long getDeliveredCount ()
+	{
+	    return delivered.sum ();
+	}
+
+	public long getDeliveredBytes ()
+	{
+	    return delivered_bytes.sum ();
+	}
+
+	// Deliveries to the stream while it was not writable
+	public long getCongestedCount ()
+	{
+	    return congested.sum ();
+	}
+
+	// Returns false if the stream dropped data (see write)
+	private boolean deliver (final SharedBuffer data)
+	{
+	    final boolean congested = !delegator.isWritable ();
+
+	    if (!delegator.write (data))
+		return false;
+
+	    delegator.flush ();
+
+	    if (congested)
+		this.congested.increment ();
+	    delivered.increment ();
+	    delivered_bytes.add (data.remaining ());
+
+	    return true;
+	}
+    }
+
+    private Logger logger;
+
+    private final String name;
+
+    private volatile State state;
+
+    private BufferPool buffer_pool; // for the serialized stanzas
+
+    private final ConcurrentHashMap<String, Route> routes;
+    private final LongAdder unroutable;
+
+    public StanzaRouter (final String name)
+    {
+	if (null == name)
+	    throw new NullPointerException ("name");
+
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	state = State.STOPPED;
+
+	buffer_pool = BufferPool.getDefault ();
+
+	routes = new ConcurrentHashMap<> ();
+	unroutable = new LongAdder ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    // >>> Named
+
+    public String getName ()
+    {
+	return name;
+    }
+
+    public void setName (final String name)
+	throws UnsupportedOperationException
+    {
+	throw new UnsupportedOperationException ();
+    }
+
+    // <<< Named
+
+    private void checkState (State needed_state)
+	throws IllegalStateException
+    {
+	if (needed_state != currentState ())
+	    throw new IllegalStateException
+		("This method can only be invoked when the router is in"
+		 + " state(" + needed_state + ")");
+    }
+
+    public synchronized void setBufferPool (final BufferPool buffer_pool)
+    {
+	if (null == buffer_pool)
+	    throw new NullPointerException ("buffer_pool");
+
+	checkState (State.STOPPED);
+
+	this.buffer_pool = buffer_pool;
+    }
+
+    /* Routes address to delegator (replacing the route of another
+       delegator), the route should be unregistered when the stream is
+       closed (e.g. in XmlStanzaDelegate.cleanup) */
+    public Route register (final String address,
+			   final XmlStanzaDelegator delegator)
+    {
+	final Route route;
+	final Route previous;
+
+	if (null == address)
+	    throw new NullPointerException ("address");
+	if (null == delegator)
+	    throw new NullPointerException ("delegator");
+
+	checkState (State.RUNNING);
+
+	route = new Route (address, delegator);
+	previous = routes.put (address, route);
+
+	// stopped in the meantime, after (or while) clearing the routes
+	if (State.RUNNING != state) {
+	    routes.remove (address, route);
+	    throw new IllegalStateException
+		("The router has been stopped while registering");
+	}
+
+	if (null != previous && previous.delegator != delegator)
+	    logger.fine ("Route to address(" + address + ") replaced");
+
+	return route;
+    }
+
+    /* Removes the route of address if it still leads to delegator,
+       returns false otherwise */
+    public boolean unregister (final String address,
+			       final XmlStanzaDelegator delegator)
+    {
+	final Route route = routes.get (address);
+
+	return null != route
+	    && route.delegator == delegator
+	    && routes.remove (address, route);
+    }
+
+    // Returns null if there is no route to address
+    public Route getRoute (final String address)
+    {
+	Route route = routes.get (address);
+
+	if (null == route) {
+	    final int slash = address.indexOf ('/');
+
+	    if (slash > 0)
+		route = routes.get (address.substring (0, slash));
+	}
+
+	return route;
+    }
+
+    // Snapshot of all the routes (with their metrics)
+    public List<Route> getRoutes ()
+    {
+	return new ArrayList<> (routes.values ());
+    }
+
+    public int getRouteCount ()
+    {
+	return routes.size ();
+    }
+
+    public long getUnroutableCount ()
+    {
+	return unroutable.sum ();
+    }
+
+    /* Queues data on the stream of to, returns false if there is no
+       route (or the router is not running) or the stream dropped data
+       (see XmlStanzaDelegator.write (SharedBuffer)), it then is not
+       counted as delivered. data is not released. */
+    public boolean route (final String to, final SharedBuffer data)
+    {
+	final Route route = State.RUNNING == state ? getRoute (to) : null;
+
+	if (null == route) {
+	    unroutable.increment ();
+	    return false;
+	}
+
+	return route.deliver (data);
+    }
+
+    public boolean route (final String to, final Stanza stanza)
+    {
+	return route (to, new StanzaWriter (buffer_pool).stanza (stanza, 0));
+    }
+
+    public boolean route (final String to, final Document stanza)
+    {
+	return route (to, new StanzaWriter (buffer_pool).node (stanza));
+    }
+
+    private boolean route (final String to, final StanzaWriter writer)
+    {
+	final SharedBuffer data = writer.share ();
+
+	if (null == data)
+	    return false;
+
+	try {
+	    return route (to, data);
+	} finally {
+	    data.release ();
+	}
+    }
+
+    // >>> Engine
+
+    public State currentState ()
+    {
+	return state;
+    }
+
+    public synchronized void changeState (final State new_state)
+    {
+	if (new_state != state) {
+	    switch (new_state) {
+	    case RUNNING:
+		state = State.RUNNING;
+		break;
+	    case STOPPED:
+		state = State.STOPPED;
+		logger.info ("Dropping " + routes.size () + " route(s)");
+		routes.clear ();
+		break;
+	    }
+
+	    logger.info ("Router is now " + state);
+	}
+    }
+
+    // <<< Engine
+}
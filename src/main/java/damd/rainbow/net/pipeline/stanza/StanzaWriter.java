@@ -0,0 +1,526 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import java.util.Arrays;
+
+import java.nio.ByteBuffer;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+
+import org.xml.sax.Attributes;
+
+import damd.rainbow.xml.Stanza;
+
+import damd.rainbow.net.pipeline.BufferPool;
+import damd.rainbow.net.pipeline.SharedBuffer;
+
+/* Writes XML straight into a ByteBuffer as UTF-8, escaping text and
+   attribute values, without any formatting. The buffer is leased from
+   a BufferPool (or allocated on the heap if there is no pool) and
+   grows as needed; finish hands it over to the caller.
+
+   Whole trees (DOM nodes or Stanza's) are written with node and
+   stanza, as is: no pretty printing, no XML declaration. */
+public class StanzaWriter
+{
+    private static final int MIN_SIZE = 512;
+
+    // what putChars escapes
+    private static final int RAW = 0;
+    private static final int TEXT = 1;
+    private static final int ATTRIBUTE = 2; // whitespace too, see needsEscape
+
+    /* The namespaces declared in the elements written by node, the
+       innermost last, so the declarations missing from a DOM built
+       with createElementNS/setAttributeNS can be added */
+    private static class Scope
+    {
+	private String[] prefixes = new String[8];
+	private String[] uris = new String[8];
+	private int count;
+	private int[] marks = new int[8]; // count at each open element
+	private int depth;
+
+	void push ()
+	{
+	    if (depth == marks.length)
+		marks = Arrays.copyOf (marks, depth * 2);
+	    marks[depth++] = count;
+	}
+
+	void pop ()
+	{
+	    count = marks[--depth];
+	}
+
+	void declare (final String prefix, final String uri)
+	{
+	    if (count == prefixes.length) {
+		prefixes = Arrays.copyOf (prefixes, count * 2);
+		uris = Arrays.copyOf (uris, count * 2);
+	    }
+	    prefixes[count] = prefix;
+	    uris[count++] = uri;
+	}
+
+	// The URI prefix is bound to ("" ~ no namespace), null if unbound
+	String lookup (final String prefix)
+	{
+	    for (int n = count - 1;n >= 0;--n)
+		if (prefixes[n].equals (prefix))
+		    return uris[n];
+
+	    if (XMLConstants.XML_NS_PREFIX.equals (prefix))
+		return XMLConstants.XML_NS_URI;
+
+	    return prefix.isEmpty () ? "" : null;
+	}
+
+	// A (non default) prefix bound to uri, null if none
+	String prefixOf (final String uri)
+	{
+	    for (int n = count - 1;n >= 0;--n)
+		if (uris[n].equals (uri)
+		    && !prefixes[n].isEmpty ()
+		    && uri.equals (lookup (prefixes[n])))
+		    return prefixes[n];
+
+	    return null;
+	}
+    }
+
+    private final BufferPool buffer_pool; // null ~ heap buffers
+
+    private ByteBuffer buffer;
+    private boolean start_tag_open;
+
+    public StanzaWriter (final BufferPool buffer_pool)
+    {
+	this.buffer_pool = buffer_pool;
+    }
+
+    public StanzaWriter startElement (final String name)
+    {
+	closeStartTag ();
+
+	putAscii ('<');
+	putChars (name, RAW);
+	start_tag_open = true;
+
+	return this;
+    }
+
+    public StanzaWriter startElement (final String name,
+				      final Attributes attrs)
+    {
+	startElement (name);
+
+	if (null != attrs)
+	    for (int a = 0;a < attrs.getLength ();++a) {
+		final String qname = attrs.getQName (a);
+
+		attribute (null == qname || qname.isEmpty ()
+			   ? attrs.getLocalName (a)
+			   : qname,
+			   attrs.getValue (a));
+	    }
+
+	return this;
+    }
+
+    public StanzaWriter attribute (final String name, final String value)
+    {
+	if (!start_tag_open)
+	    throw new IllegalStateException ("No start tag to add to");
+
+	putAscii (' ');
+	putChars (name, RAW);
+	putAscii ('=');
+	putAscii ('"');
+	putChars (value, ATTRIBUTE);
+	putAscii ('"');
+
+	return this;
+    }
+
+    public StanzaWriter text (final String text)
+    {
+	closeStartTag ();
+
+	putChars (text, TEXT);
+
+	return this;
+    }
+
+    public StanzaWriter text (final char[] ch, final int start, final int length)
+    {
+	closeStartTag ();
+
+	for (int n = start;n < start + length;++n) {
+	    final char c = ch[n];
+
+	    if (c < 0x80 && !needsEscape (c, TEXT))
+		putAscii (c);
+	    else
+		n = putChar (ch, n, start + length, TEXT);
+	}
+
+	return this;
+    }
+
+    public StanzaWriter endElement (final String name)
+    {
+	if (start_tag_open) {
+	    putAscii ('/');
+	    putAscii ('>');
+	    start_tag_open = false;
+	} else {
+	    putAscii ('<');
+	    putAscii ('/');
+	    putChars (name, RAW);
+	    putAscii ('>');
+	}
+
+	return this;
+    }
+
+    /* Writes node (an Element, or the document element of a Document)
+       and everything below it. Text and CDATA sections are written as
+       (escaped) text, comments and processing instructions are
+       skipped.
+
+       The namespaces of the elements and attributes (of a namespace
+       aware DOM) are declared where the tree does not declare them
+       itself, the output does not depend on the ancestors of node. */
+    public StanzaWriter node (final Node node)
+    {
+	final Node top = (node instanceof Document
+			  ? ((Document) node).getDocumentElement ()
+			  : node);
+	final Scope scope = new Scope ();
+	Node current = top;
+
+	while (null != current) {
+	    Node child = null;
+
+	    switch (current.getNodeType ()) {
+	    case Node.ELEMENT_NODE:
+		startElement (current.getNodeName ());
+		scope.push ();
+		attributes (current, scope);
+		child = current.getFirstChild ();
+		break;
+	    case Node.ENTITY_REFERENCE_NODE:
+		child = current.getFirstChild ();
+		break;
+	    case Node.TEXT_NODE:
+	    case Node.CDATA_SECTION_NODE:
+		text (current.getNodeValue ());
+		break;
+	    default:
+		break;
+	    }
+
+	    if (null != child) {
+		current = child;
+		continue;
+	    }
+
+	    // end current and its ancestors up to the first with a sibling
+	    while (true) {
+		final Node sibling;
+
+		if (Node.ELEMENT_NODE == current.getNodeType ()) {
+		    endElement (current.getNodeName ());
+		    scope.pop ();
+		}
+
+		if (current == top) {
+		    current = null;
+		    break;
+		}
+
+		if (null != (sibling = current.getNextSibling ())) {
+		    current = sibling;
+		    break;
+		}
+
+		current = current.getParentNode ();
+	    }
+	}
+
+	return this;
+    }
+
+    /* Writes the attributes of element, the namespace declarations it
+       has first, then those it misses (see node) */
+    private void attributes (final Node element, final Scope scope)
+    {
+	final NamedNodeMap attrs = element.getAttributes ();
+
+	for (int a = 0;a < attrs.getLength ();++a) {
+	    final Node attr = attrs.item (a);
+	    final String name = attr.getNodeName ();
+
+	    if (XMLConstants.XMLNS_ATTRIBUTE.equals (name))
+		scope.declare ("", attr.getNodeValue ());
+	    else if (name.startsWith (XMLConstants.XMLNS_ATTRIBUTE + ":"))
+		scope.declare (name.substring (6), attr.getNodeValue ());
+	    else
+		continue;
+
+	    attribute (name, attr.getNodeValue ());
+	}
+
+	// not created with createElementNS (DOM level 1) ~ no namespace
+	if (null != element.getLocalName ())
+	    declare (element.getPrefix (), element.getNamespaceURI (), scope);
+
+	for (int a = 0;a < attrs.getLength ();++a) {
+	    final Node attr = attrs.item (a);
+	    final String name = attr.getNodeName ();
+	    final String uri = attr.getNamespaceURI ();
+
+	    if (XMLConstants.XMLNS_ATTRIBUTE.equals (name)
+		|| name.startsWith (XMLConstants.XMLNS_ATTRIBUTE + ":"))
+		continue;
+
+	    if (null == uri || uri.isEmpty ()) {
+		attribute (name, attr.getNodeValue ());
+		continue;
+	    }
+
+	    // an unprefixed attribute has no namespace, it needs a prefix
+	    String prefix = attr.getPrefix ();
+
+	    if (null == prefix || prefix.isEmpty ()) {
+		prefix = scope.prefixOf (uri);
+
+		for (int n = 0;null == prefix;++n)
+		    if (null == scope.lookup ("ns" + n))
+			prefix = "ns" + n;
+	    }
+
+	    declare (prefix, uri, scope);
+	    attribute (prefix + ":" + attr.getLocalName (),
+		       attr.getNodeValue ());
+	}
+    }
+
+    // Declares prefix (null ~ default) as uri, unless it already is
+    private void declare (final String prefix,
+			  final String uri,
+			  final Scope scope)
+    {
+	final String p = null == prefix ? "" : prefix;
+	final String u = null == uri ? "" : uri;
+
+	if (u.equals (scope.lookup (p)))
+	    return;
+
+	scope.declare (p, u);
+	attribute (p.isEmpty ()
+		   ? XMLConstants.XMLNS_ATTRIBUTE
+		   : XMLConstants.XMLNS_ATTRIBUTE + ":" + p,
+		   u);
+    }
+
+    /* Writes element of stanza and everything below it, the text of
+       an element is written before its children (see Stanza) */
+    public StanzaWriter stanza (final Stanza stanza, final int element)
+    {
+	final int count = stanza.getElementCount ();
+	int[] open = new int[8]; // elements started, not ended yet
+	int depth = 0;
+
+	for (int e = element;e < count;++e) {
+	    final int parent = stanza.getParent (e);
+
+	    // end the elements that are not an ancestor of e
+	    while (depth > 0 && open[depth - 1] != parent)
+		endElement (stanza.getName (open[--depth]));
+
+	    if (0 == depth && e != element)
+		break; // e is past the subtree of element
+
+	    startElement (stanza.getName (e));
+	    for (int a = 0;a < stanza.getAttributeCount (e);++a)
+		attribute (stanza.getAttributeName (e, a),
+			   stanza.getAttributeValue (e, a));
+
+	    if (stanza.getTextLength (e) > 0)
+		text (stanza.getText (e));
+
+	    if (depth == open.length)
+		open = Arrays.copyOf (open, depth * 2);
+	    open[depth++] = e;
+	}
+
+	while (depth > 0)
+	    endElement (stanza.getName (open[--depth]));
+
+	return this;
+    }
+
+    /* Returns what has been written (flipped, null if nothing), the
+       caller owns the buffer (and has to release it to the pool) */
+    public ByteBuffer finish ()
+    {
+	final ByteBuffer buffer = this.buffer;
+
+	closeStartTag ();
+
+	this.buffer = null;
+	if (null != buffer)
+	    buffer.flip ();
+
+	return buffer;
+    }
+
+    /* As finish, but for writing the same data to many delegators
+       (see XmlStanzaDelegator.write (SharedBuffer)), null if nothing
+       has been written */
+    public SharedBuffer share ()
+    {
+	final ByteBuffer buffer = finish ();
+
+	return null == buffer ? null : new SharedBuffer (buffer, buffer_pool);
+    }
+
+    /* Drops what has been written */
+    public void reset ()
+    {
+	if (null != buffer_pool)
+	    buffer_pool.release (buffer);
+
+	buffer = null;
+	start_tag_open = false;
+    }
+
+    private void closeStartTag ()
+    {
+	if (start_tag_open) {
+	    putAscii ('>');
+	    start_tag_open = false;
+	}
+    }
+
+    private void ensure (final int size)
+    {
+	if (null == buffer)
+	    buffer = null == buffer_pool
+		? ByteBuffer.allocate (Math.max (MIN_SIZE, size))
+		: buffer_pool.lease (Math.max (MIN_SIZE, size));
+	else if (buffer.remaining () < size) {
+	    final int extra = Math.max (size, buffer.capacity ());
+
+	    if (null == buffer_pool) {
+		final ByteBuffer grown =
+		    ByteBuffer.allocate (buffer.position () + extra);
+
+		buffer.flip ();
+		grown.put (buffer);
+		buffer = grown;
+	    } else
+		buffer = buffer_pool.grow (buffer, extra);
+	}
+    }
+
+    private void putAscii (final char c)
+    {
+	ensure (1);
+	buffer.put ((byte) c);
+    }
+
+    private void putChars (final String s, final int escape)
+    {
+	final int length = null == s ? 0 : s.length ();
+
+	for (int n = 0;n < length;++n) {
+	    final char c = s.charAt (n);
+
+	    if (c < 0x80 && !needsEscape (c, escape))
+		putAscii (c);
+	    else if (Character.isHighSurrogate (c)
+		     && n + 1 < length
+		     && Character.isLowSurrogate (s.charAt (n + 1)))
+		putCodePoint (Character.toCodePoint (c, s.charAt (++n)),
+			      escape);
+	    else
+		putCodePoint (c, escape);
+	}
+    }
+
+    // Returns the index of the last char used
+    private int putChar (final char[] ch,
+			 final int n,
+			 final int end,
+			 final int escape)
+    {
+	final char c = ch[n];
+
+	if (Character.isHighSurrogate (c)
+	    && n + 1 < end
+	    && Character.isLowSurrogate (ch[n + 1])) {
+	    putCodePoint (Character.toCodePoint (c, ch[n + 1]), escape);
+	    return n + 1;
+	}
+
+	putCodePoint (c, escape);
+	return n;
+    }
+
+    /* A CR would be read as a LF, and whitespace in an attribute
+       value as a space, unless they are written as references */
+    private static boolean needsEscape (final int c, final int escape)
+    {
+	if (RAW == escape)
+	    return false;
+
+	if (ATTRIBUTE == escape && ('\t' == c || '\n' == c))
+	    return true;
+
+	return '&' == c || '<' == c || '>' == c || '"' == c || '\r' == c;
+    }
+
+    private void putCodePoint (final int c, final int escape)
+    {
+	ensure (6);
+
+	if (needsEscape (c, escape)) {
+	    final String entity;
+
+	    switch (c) {
+	    case '&': entity = "&amp;"; break;
+	    case '<': entity = "&lt;"; break;
+	    case '>': entity = "&gt;"; break;
+	    case '"': entity = "&quot;"; break;
+	    default: entity = "&#" + c + ";"; break;
+	    }
+
+	    for (int n = 0;n < entity.length ();++n)
+		buffer.put ((byte) entity.charAt (n));
+	} else if (c < 0x80)
+	    buffer.put ((byte) c);
+	else if (c < 0x800) {
+	    buffer.put ((byte) (0xc0 | (c >> 6)));
+	    buffer.put ((byte) (0x80 | (c & 0x3f)));
+	} else if (c < 0x10000) {
+	    if (c >= 0xd800 && c <= 0xdfff) {
+		buffer.put ((byte) '?'); // unpaired surrogate
+		return;
+	    }
+	    buffer.put ((byte) (0xe0 | (c >> 12)));
+	    buffer.put ((byte) (0x80 | ((c >> 6) & 0x3f)));
+	    buffer.put ((byte) (0x80 | (c & 0x3f)));
+	} else {
+	    buffer.put ((byte) (0xf0 | (c >> 18)));
+	    buffer.put ((byte) (0x80 | ((c >> 12) & 0x3f)));
+	    buffer.put ((byte) (0x80 | ((c >> 6) & 0x3f)));
+	    buffer.put ((byte) (0x80 | (c & 0x3f)));
+	}
+    }
+}
@@ -0,0 +1,262 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import org.w3c.dom.Document;
+
+import damd.rainbow.xml.Stanza;
+
+import damd.rainbow.net.pipeline.SharedBuffer;
+
+import damd.rainbow.util.concurrent.TimingWheel;
+
+/* Stream management (as XEP-0198) for one session, see
+   StreamSessionManager: the stanzas written through the session are
+   kept until the peer acknowledges them, so when the connection is
+   lost they can be written again on the connection that resumes the
+   session, instead of the peer setting up a new one.
+
+   The unacknowledged stanzas are kept in a bounded ring; when it is
+   full the oldest one is dropped (counted as acknowledged, the
+   acknowledgements of the peer still apply) and the session can no
+   longer be resumed. Counters are (as in XEP-0198) modulo 2^32.
+
+   The delegate does the protocol: it writes the stanzas through the
+   session, counts the stanzas it handled (countInbound), passes the
+   acknowledgements of the peer (acknowledge) and detaches the session
+   when its stream is closed (e.g. in cleanup). */
+public class StreamSession
+{
+    private static final long MASK = 0xffffffffL;
+
+    private final StreamSessionManager manager;
+    private final String id;
+    private final String owner; // e.g. the authenticated JID
+
+    private final SharedBuffer[] unacked; // ring, oldest at head
+    private int head;
+    private int size;
+    private long dropped; // unacked stanzas dropped, see keep
+
+    private long outbound_count; // stanzas written
+    private long acked_count; // stanzas acknowledged by the peer or dropped
+    private long inbound_count; // stanzas handled
+
+    private XmlStanzaDelegator delegator; // null ~ detached
+    private TimingWheel.Timeout expiry;
+    private boolean closed;
+
+    StreamSession (final StreamSessionManager manager,
+		   final String id,
+		   final String owner,
+		   final int max_unacked,
+		   final XmlStanzaDelegator delegator)
+    {
+	this.manager = manager;
+	this.id = id;
+	this.owner = owner;
+	this.delegator = delegator;
+
+	unacked = new SharedBuffer[max_unacked];
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(id(" + id + "))";
+    }
+
+    public String getId ()
+    {
+	return id;
+    }
+
+    public String getOwner ()
+    {
+	return owner;
+    }
+
+    public synchronized boolean isAttached ()
+    {
+	return null != delegator;
+    }
+
+    // false once unacked stanzas have been dropped (or it is closed)
+    public synchronized boolean isResumable ()
+    {
+	return !(dropped > 0 || closed);
+    }
+
+    public synchronized int getUnackedCount ()
+    {
+	return size;
+    }
+
+    // The h to send to the peer
+    public synchronized long getInboundCount ()
+    {
+	return inbound_count;
+    }
+
+    public synchronized long getOutboundCount ()
+    {
+	return outbound_count;
+    }
+
+    // A stanza of the peer has been handled
+    public synchronized void countInbound ()
+    {
+	inbound_count = (inbound_count + 1) & MASK;
+    }
+
+    /* Writes data (if attached) and keeps it until it is acknowledged,
+       the session adds its own reference to data */
+    public void write (final SharedBuffer data)
+    {
+	if (null != data)
+	    keep (data.retain ());
+    }
+
+    public void write (final Stanza stanza)
+    {
+	if (null != stanza)
+	    keep (new StanzaWriter (manager.getBufferPool ())
+		  .stanza (stanza, 0)
+		  .share ());
+    }
+
+    public void write (final Document stanza)
+    {
+	if (null != stanza)
+	    keep (new StanzaWriter (manager.getBufferPool ())
+		  .node (stanza)
+		  .share ());
+    }
+
+    public synchronized void flush ()
+    {
+	if (null != delegator)
+	    delegator.flush ();
+    }
+
+    // data holds a reference for the session
+    private synchronized void keep (final SharedBuffer data)
+    {
+	if (null == data)
+	    return;
+
+	if (closed) {
+	    data.release ();
+	    return;
+	}
+
+	// the dropped stanza counts as acknowledged, so later acks line up
+	if (size == unacked.length) {
+	    release (1);
+	    acked_count = (acked_count + 1) & MASK;
+	    ++dropped;
+	}
+
+	unacked[(head + size++) % unacked.length] = data;
+	outbound_count = (outbound_count + 1) & MASK;
+
+	if (null != delegator)
+	    delegator.write (data);
+    }
+
+    // Releases the count oldest stanzas
+    private void release (int count)
+    {
+	while (count-- > 0) {
+	    unacked[head].release ();
+	    unacked[head] = null;
+	    head = (head + 1) % unacked.length;
+	    --size;
+	}
+    }
+
+    /* The peer has handled h stanzas (in total), returns false if h
+       is more than has been written. h may lag behind the stanzas
+       dropped on overflow, nothing is released then. */
+    public synchronized boolean acknowledge (final long h)
+    {
+	final long count = (h - acked_count) & MASK;
+
+	if (count > size) {
+	    final long lag = (acked_count - h) & MASK;
+
+	    return lag <= dropped && lag <= (MASK >>> 1);
+	}
+
+	release ((int) count);
+	acked_count = h & MASK;
+
+	return true;
+    }
+
+    /* The stream of delegator is gone, the session waits for a
+       connection to resume it (see StreamSessionManager) */
+    public void detach (final XmlStanzaDelegator delegator)
+    {
+	synchronized (this) {
+	    if (delegator != this.delegator || closed)
+		return;
+
+	    this.delegator = null;
+	}
+
+	manager.detached (this);
+    }
+
+    /* As if count stanzas had been written and acknowledged (e.g. to
+       test the counters wrapping), only before anything is written */
+    synchronized void startAt (final long count)
+    {
+	if (outbound_count != 0 || size != 0)
+	    throw new IllegalStateException ("Stanzas have been written");
+
+	outbound_count = acked_count = count & MASK;
+    }
+
+    synchronized void setExpiry (final TimingWheel.Timeout expiry)
+    {
+	if (null != this.expiry)
+	    this.expiry.cancel ();
+
+	this.expiry = expiry;
+    }
+
+    /* Attaches the session to delegator (taking it over from another
+       one, whose stream may not have noticed it is gone yet), drops
+       what the peer acknowledged (h) and writes the rest again.
+       Returns false (leaving the session as it was) if it cannot be
+       resumed. */
+    synchronized boolean resume (final XmlStanzaDelegator delegator,
+				 final long h)
+    {
+	if (!isResumable () || !acknowledge (h))
+	    return false;
+
+	setExpiry (null);
+	this.delegator = delegator;
+
+	for (int n = 0;n < size;++n)
+	    delegator.write (unacked[(head + n) % unacked.length]);
+	delegator.flush ();
+
+	return true;
+    }
+
+    // Drops the session (and whatever has not been acknowledged)
+    public void close ()
+    {
+	synchronized (this) {
+	    if (closed)
+		return;
+
+	    closed = true;
+	    delegator = null;
+	    setExpiry (null);
+	    release (size);
+	}
+
+	manager.closed (this);
+    }
+}
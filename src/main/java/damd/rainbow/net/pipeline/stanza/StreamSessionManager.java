@@ -0,0 +1,177 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import java.util.Base64;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.logging.Logger;
+
+import java.security.SecureRandom;
+
+import damd.rainbow.net.pipeline.BufferPool;
+
+import damd.rainbow.util.concurrent.TimingWheel;
+
+/* Keeps the StreamSession's that can be resumed, by (random) id. A
+   detached session is closed when it has not been resumed within the
+   resume timeout (sessions are kept until they are closed when there
+   is no TimingWheel).
+
+   The id is not enough to resume a session: as XEP-0198 requires, the
+   stream resuming it has to be authenticated as the owner of the
+   session (e.g. its bare JID), the delegate passes the owner it
+   authenticated to create and resume. */
+public class StreamSessionManager
+{
+    private Logger logger;
+
+    private final String name;
+
+    private final SecureRandom random;
+    private final ConcurrentHashMap<String, StreamSession> sessions;
+
+    private int max_unacked;
+    private TimingWheel timing_wheel; // null ~ no resume timeout
+    private long resume_timeout; // in milliseconds
+    private BufferPool buffer_pool;
+
+    public StreamSessionManager (final String name)
+    {
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	random = new SecureRandom ();
+	sessions = new ConcurrentHashMap<> ();
+
+	max_unacked = 256;
+	resume_timeout = 300000L;
+	buffer_pool = BufferPool.getDefault ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    // Per session, for the sessions created afterwards
+    public synchronized void setMaxUnacked (final int max_unacked)
+    {
+	if (max_unacked < 1)
+	    throw new IllegalArgumentException
+		("max_unacked(" + max_unacked + ") must be >= 1");
+
+	this.max_unacked = max_unacked;
+    }
+
+    /* A detached session has to be resumed within timeout milliseconds
+       (checked by wheel) or it is closed */
+    public synchronized void setResumeTimeout (final TimingWheel wheel,
+					       final long timeout)
+    {
+	timing_wheel = wheel;
+	resume_timeout = timeout;
+    }
+
+    public synchronized void setBufferPool (final BufferPool buffer_pool)
+    {
+	if (null == buffer_pool)
+	    throw new NullPointerException ("buffer_pool");
+
+	this.buffer_pool = buffer_pool;
+    }
+
+    synchronized BufferPool getBufferPool ()
+    {
+	return buffer_pool;
+    }
+
+    public int getSessionCount ()
+    {
+	return sessions.size ();
+    }
+
+    public StreamSession create (final String owner,
+				 final XmlStanzaDelegator delegator)
+    {
+	final byte[] bytes = new byte[16];
+	final int max_unacked;
+	StreamSession session;
+
+	if (null == owner)
+	    throw new NullPointerException ("owner");
+
+	synchronized (this) {
+	    max_unacked = this.max_unacked;
+	}
+
+	do {
+	    random.nextBytes (bytes);
+	    session = new StreamSession (this,
+					 Base64.getUrlEncoder ()
+					 .withoutPadding ()
+					 .encodeToString (bytes),
+					 owner,
+					 max_unacked,
+					 delegator);
+	} while (null != sessions.putIfAbsent (session.getId (), session));
+
+	return session;
+    }
+
+    /* Resumes session id of owner (as authenticated on the stream of
+       delegator) on that stream, h is the number of stanzas the peer
+       has handled. Returns null if there is no such session of owner
+       or it cannot be resumed. A detached session that cannot be
+       resumed is closed (the peer has to create a new one), one that
+       is still attached is left to its stream. */
+    public StreamSession resume (final String id,
+				 final String owner,
+				 final XmlStanzaDelegator delegator,
+				 final long h)
+    {
+	final StreamSession session = sessions.get (id);
+
+	if (null == session || !session.getOwner ().equals (owner)) {
+	    logger.fine ("No session(" + id + ") of owner(" + owner + ")");
+	    return null;
+	}
+
+	if (!session.resume (delegator, h)) {
+	    logger.fine ("Session(" + id + ") cannot be resumed");
+	    if (!session.isAttached ())
+		session.close ();
+	    return null;
+	}
+
+	return session;
+    }
+
+    void detached (final StreamSession session)
+    {
+	final TimingWheel timing_wheel;
+	final long resume_timeout;
+
+	synchronized (this) {
+	    timing_wheel = this.timing_wheel;
+	    resume_timeout = this.resume_timeout;
+	}
+
+	if (!session.isResumable ())
+	    session.close ();
+	else if (null != timing_wheel)
+	    session.setExpiry (timing_wheel.schedule (new Runnable () {
+		    public void run ()
+		    {
+			if (!session.isAttached ())
+			    session.close ();
+		    }
+		}, resume_timeout));
+    }
+
+    void closed (final StreamSession session)
+    {
+	sessions.remove (session.getId (), session);
+    }
+}
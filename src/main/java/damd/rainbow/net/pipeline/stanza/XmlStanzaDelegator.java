@@ -1,13 +1,58 @@
 package damd.rainbow.net.pipeline.stanza;
 
+import java.nio.ByteBuffer;
+
 import org.w3c.dom.Document;
 
 import damd.rainbow.xml.DomReader;
+import damd.rainbow.xml.Stanza;
+
+import damd.rainbow.net.pipeline.PipelineNode;
+import damd.rainbow.net.pipeline.SharedBuffer;
 
 public interface XmlStanzaDelegator
 {
     public void write (String value);
+    /* Stanzas are serialized as is (UTF-8, no formatting), the element
+       of a DomReader with everything below it */
     public void write (DomReader stanza);
     public void write (Document stanza);
+    public void write (Stanza stanza);
+    /* Queues data (UTF-8) as is, without copying it: data may not be
+       changed afterwards (see XmlStanzaStreamDelegate.endStanza) */
+    public void write (ByteBuffer data);
+    /* Queues a view of data, e.g. a stanza broadcast to many streams
+       that is only serialized once:
+
+	 final SharedBuffer data = new StanzaWriter (pool).stanza (s, 0).share ();
+
+	 for (final XmlStanzaDelegator delegator : delegators) {
+	     delegator.write (data);
+	     delegator.flush ();
+	 }
+	 data.release ();
+
+       The view is released once it has been written (or dropped).
+       Returns false if data has been dropped (the stream is closed
+       or its outbound overflowed) */
+    public boolean write (SharedBuffer data);
     public void flush ();
+
+    /* false while the outbound data is above its high watermark,
+       writing then only adds to the buffered data */
+    public boolean isWritable ();
+
+    /* Stop (and restart) reading stanzas from the stream, e.g. while
+       the stanzas already read are still waiting to be processed.
+       A stanza that is already being parsed may still be handed to
+       the delegate after pauseReading. */
+    public void pauseReading ();
+    public void resumeReading ();
+
+    /* Inserts node right below the stanza handler (e.g. a
+       PipelineSSLHandler for STARTTLS, then a compression node) once
+       what has been written so far is flushed, see Pipeline.insert.
+       The stream restarts: the next element read is handed to
+       openStream again. */
+    public void insertNode (PipelineNode node);
 }
@@ -0,0 +1,10 @@
+package damd.rainbow.net.pipeline.stanza;
+
+/* A delegate that wants to be told when it should pause (and resume)
+   writing because the outbound data is not being sent fast enough,
+   see XmlStanzaHandler.setOutboundLimits. */
+public interface XmlStanzaFlowDelegate
+    extends XmlStanzaDelegate
+{
+    public void writabilityHasChanged (boolean writable);
+}
@@ -7,8 +7,12 @@ import java.io.IOException;
 
 import java.nio.ByteBuffer;
 
+import java.nio.channels.GatheringByteChannel;
+
 import java.nio.charset.StandardCharsets;
 
+import java.util.concurrent.Executor;
+
 import org.w3c.dom.Node;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -24,42 +28,158 @@ import uk.org.retep.niosax.NioSaxParser;
 import uk.org.retep.niosax.NioSaxSource;
 
 import damd.rainbow.xml.XmlException;
-import damd.rainbow.xml.DomBuilder;
 import damd.rainbow.xml.DomReader;
+import damd.rainbow.xml.Stanza;
+import damd.rainbow.xml.StanzaBuilder;
 
 import damd.rainbow.net.pipeline.PipelineState;
 import damd.rainbow.net.pipeline.PipelineEvent;
 import damd.rainbow.net.pipeline.Pipeline;
+import damd.rainbow.net.pipeline.PipelineNode;
 import damd.rainbow.net.pipeline.PipelineSource;
 import damd.rainbow.net.pipeline.PipelineTarget;
+import damd.rainbow.net.pipeline.PipelineGatheringTarget;
 import damd.rainbow.net.pipeline.BufferedOutbound;
+import damd.rainbow.net.pipeline.BufferPool;
+import damd.rainbow.net.pipeline.SharedBuffer;
 
 public class XmlStanzaHandler
     implements
-	PipelineTarget,
+	PipelineGatheringTarget,
 	XmlStanzaDelegator,
+	BufferedOutbound.Listener,
 	ContentHandler
 {
     private Logger logger;
 
     private final XmlStanzaDelegate delegate;
+    private final XmlStanzaStreamDelegate stream_delegate; // null ~ tree
+    private final XmlStanzaTreeDelegate tree_delegate; // null ~ DOM
 
     private Pipeline pipeline;
     private PipelineSource source;
 
-    private BufferedOutbound buffered_outbound;
+    private BufferPool buffer_pool; // for the serialized stanzas
+    private volatile BufferedOutbound buffered_outbound; // see closeNode
+
+    private long outbound_low;
+    private long outbound_high;
+    private long outbound_hard;
+    private BufferedOutbound.Overflow outbound_overflow;
 
     private NioSaxParser parser;
+    private volatile boolean restart_pending; // see insertNode
+    private boolean stream_restarted; // next element opens the stream
 
     private StringBuilder element_characters;
-    private DomBuilder stanza;
+    private final StanzaBuilder stanza;
+
+    private int depth; // of the stream_delegate, 0 ~ between stanzas
+    private StanzaWriter raw; // not null while passing a stanza through
+
+    private int max_stanza_size; // in chars, 0 ~ no limit (idem below)
+    private int max_depth;
+    private int max_attributes; // per element
+    private int max_text_length; // per element, in chars
+    private long stanza_size; // of the stanza being read, in chars
+    private boolean exceeded; // a limit, the stream is invalid
+
+    private Executor dispatch_executor; // null ~ on the parsing thread
+    private String dispatch_key; // attribute, null ~ stream order
+    private int dispatch_max_pending;
+    private StanzaDispatcher dispatcher;
+
+    private boolean delegate_paused; // see pauseReading, guarded by this
+    private boolean dispatch_paused; // see StanzaDispatcher, idem
+    private boolean source_paused; // we sent PAUSE_INBOUND to source, idem
 
     public XmlStanzaHandler (final XmlStanzaDelegate delegate)
     {
 	logger = Logger.getLogger (getClass ().getName ());
 
 	this.delegate = delegate;
+	stream_delegate = (delegate instanceof XmlStanzaStreamDelegate
+			   ? (XmlStanzaStreamDelegate) delegate
+			   : null);
+	tree_delegate = (delegate instanceof XmlStanzaTreeDelegate
+			 ? (XmlStanzaTreeDelegate) delegate
+			 : null);
 	delegate.setDelegator (this);
+
+	stanza = new StanzaBuilder ();
+
+	buffer_pool = BufferPool.getDefault ();
+
+	outbound_overflow = BufferedOutbound.Overflow.KEEP;
+    }
+
+    /* See BufferedOutbound.setLimits, must be set before the pipeline
+       is opened. */
+    public void setOutboundLimits (final long low,
+				   final long high,
+				   final long hard,
+				   final BufferedOutbound.Overflow overflow)
+    {
+	if (null == overflow)
+	    throw new NullPointerException ("overflow");
+
+	outbound_low = low;
+	outbound_high = high;
+	outbound_hard = hard;
+	outbound_overflow = overflow;
+    }
+
+    public void setBufferPool (final BufferPool buffer_pool)
+    {
+	if (null == buffer_pool)
+	    throw new NullPointerException ("buffer_pool");
+
+	this.buffer_pool = buffer_pool;
+    }
+
+    /* Limits of the stanzas read, 0 means no limit: max_size is the
+       number of chars of all the names, attribute values and text of
+       a stanza (the markup is not counted), max_depth 1 only allows
+       the stanza element itself, max_attributes and max_text_length
+       (in chars) apply to each element. They are checked while a
+       stanza is being parsed, the pipeline is invalidated as soon as
+       one is exceeded (before anything is kept of what exceeds it).
+
+       Must be set before the pipeline is opened. */
+    public void setStanzaLimits (final int max_size,
+				 final int max_depth,
+				 final int max_attributes,
+				 final int max_text_length)
+    {
+	max_stanza_size = max_size;
+	this.max_depth = max_depth;
+	this.max_attributes = max_attributes;
+	this.max_text_length = max_text_length;
+    }
+
+    /* Hands the stanzas to the delegate on executor instead of the
+       parsing thread, so parsing goes on while they are handled (not
+       for an XmlStanzaStreamDelegate). The stanzas are handled in the
+       order they were read, or, with a key_attribute, in that order
+       per value of the attribute of the stanza element (stanzas with
+       different values may then be handled at the same time). Reading
+       is paused while max_pending stanzas are waiting. closeStream and
+       cleanup are invoked once all the stanzas read before have been
+       handled. The executor should not reject the stanzas, the
+       pipeline is invalidated when it does.
+
+       Must be set before the pipeline is opened. */
+    public void setDispatch (final Executor executor,
+			     final String key_attribute,
+			     final int max_pending)
+    {
+	if (max_pending < 1)
+	    throw new IllegalArgumentException
+		("max_pending(" + max_pending + ") must be >= 1");
+
+	dispatch_executor = executor;
+	dispatch_key = key_attribute;
+	dispatch_max_pending = max_pending;
     }
 
     // >>> PipelineTarget
@@ -72,6 +192,20 @@ public class XmlStanzaHandler
     public void handleInbound (final ByteBuffer input)
 	throws SAXException
     {
+	if (restart_pending) {
+	    restart_pending = false;
+
+	    parser = NioSaxParserFactory.getInstance ().newInstance ();
+	    parser.setHandler (this);
+	    parser.startDocument ();
+	    stream_restarted = true;
+	}
+
+	if (exceeded) { // the stream is invalid, do not even parse it
+	    input.position (input.limit ());
+	    return;
+	}
+
 	parser.parse (new NioSaxSource (input));
     }
 
@@ -82,6 +216,16 @@ public class XmlStanzaHandler
 
     // <<< PipelineTarget
 
+    // >>> PipelineGatheringTarget
+
+    public boolean writeOutbound (final GatheringByteChannel channel)
+	throws IOException
+    {
+	return buffered_outbound.writeOutbound (channel);
+    }
+
+    // <<< PipelineGatheringTarget
+
     // >>> PipelineNode
 
     public void setPipeline (final Pipeline pipeline)
@@ -101,9 +245,26 @@ public class XmlStanzaHandler
 	case 0:
 	    buffered_outbound = new BufferedOutbound (source);
 	    buffered_outbound.setAutoFlush (false);
+	    buffered_outbound.setLimits (outbound_low,
+					 outbound_high,
+					 outbound_hard,
+					 outbound_overflow);
+	    buffered_outbound.setListener (this);
 	    parser = NioSaxParserFactory.getInstance ().newInstance ();
 	    parser.setHandler (this);
 	    parser.startDocument ();
+	    restart_pending = false;
+	    stream_restarted = false;
+	    exceeded = false;
+	    synchronized (this) {
+		delegate_paused = dispatch_paused = source_paused = false;
+	    }
+	    dispatcher = (null == dispatch_executor || null != stream_delegate
+			  ? null
+			  : new StanzaDispatcher (dispatch_executor,
+						  null == dispatch_key ? 1 : 16,
+						  dispatch_max_pending,
+						  this));
 	    break;
 	case 1:
 	    delegate.streamIsReadyForWriting (); // notify delegate
@@ -123,43 +284,330 @@ public class XmlStanzaHandler
 	    }
 	}
 
-	buffered_outbound = null;
-
-	delegate.cleanup ();
+	/* Kept (closed) for the stanzas still being handled, what they
+	   write is given back to its pool right away */
+	if (null != buffered_outbound)
+	    buffered_outbound.close (); // gives the pooled buffers back
+
+	if (null == dispatcher)
+	    delegate.cleanup ();
+	else
+	    dispatcher.whenDrained (new Runnable () {
+		    public void run ()
+		    {
+			delegate.cleanup ();
+		    }
+		});
     }
 
     // <<< PipelineNode
 
     // >>> XmlStanzaDelegator
 
+    /* The stanzas may be handled (see setDispatch) after the node has
+       been closed, what they write then is dropped (and released, see
+       BufferedOutbound.close) */
+
     public void flush ()
     {
-	buffered_outbound.flush ();
+	final BufferedOutbound buffered_outbound = this.buffered_outbound;
+
+	if (null != buffered_outbound)
+	    buffered_outbound.flush ();
+    }
+
+    public boolean isWritable ()
+    {
+	final BufferedOutbound buffered_outbound = this.buffered_outbound;
+
+	return null != buffered_outbound && buffered_outbound.isWritable ();
+    }
+
+    public void pauseReading ()
+    {
+	synchronized (this) {
+	    delegate_paused = true;
+	}
+	updatePause ();
+    }
+
+    public void resumeReading ()
+    {
+	synchronized (this) {
+	    delegate_paused = false;
+	}
+	updatePause ();
     }
 
     public void write (final String value)
     {
+	final BufferedOutbound buffered_outbound = this.buffered_outbound;
+
 	assert (null != source);
 
-	if (null != value && !(value.isEmpty ()))
+	if (null != value && !(value.isEmpty ()) && null != buffered_outbound)
 	    buffered_outbound.write
 		(ByteBuffer.wrap (value.getBytes (StandardCharsets.UTF_8)));
     }
 
+    public void write (final ByteBuffer data)
+    {
+	final BufferedOutbound buffered_outbound = this.buffered_outbound;
+
+	if (null != data && data.hasRemaining () && null != buffered_outbound)
+	    buffered_outbound.write (data);
+    }
+
+    public boolean write (final SharedBuffer data)
+    {
+	final BufferedOutbound buffered_outbound = this.buffered_outbound;
+
+	/* A broadcast may also reach a stream that is being closed, the
+	   closed outbound then releases the reference of the view */
+	return null != data
+	    && null != buffered_outbound
+	    && buffered_outbound.write (data.view (), data);
+    }
+
     public void write (final DomReader stanza)
     {
 	if (null != stanza)
-	    write (stanza.serialize ());
+	    write (new StanzaWriter (buffer_pool).node (stanza.getElement ()));
     }
 
     public void write (final Document stanza)
     {
 	if (null != stanza)
-	    write (new DomReader (stanza));
+	    write (new StanzaWriter (buffer_pool).node (stanza));
+    }
+
+    public void write (final Stanza stanza)
+    {
+	if (null != stanza)
+	    write (new StanzaWriter (buffer_pool).stanza (stanza, 0));
+    }
+
+    public void insertNode (final PipelineNode node)
+    {
+	restart_pending = true;
+	pipeline.insert (source, node);
+	flush ();
     }
 
     // <<< XmlStanzaDelegator
 
+    // >>> BufferedOutbound.Listener
+
+    public void handleOutboundEvent (final PipelineEvent event)
+    {
+	if (delegate instanceof XmlStanzaFlowDelegate)
+	    ((XmlStanzaFlowDelegate) delegate).writabilityHasChanged
+		(PipelineEvent.OUTBOUND_WRITABLE == event);
+    }
+
+    // <<< BufferedOutbound.Listener
+
+    private void streamStartElement (final String name,
+				     final Attributes attrs)
+    {
+	if (0 == depth) {
+	    if (stream_delegate.startStanza (name, attrs))
+		raw = new StanzaWriter (null);
+	} else
+	    stream_delegate.startElement (depth, name, attrs);
+
+	if (null != raw)
+	    raw.startElement (name, attrs);
+
+	++depth;
+    }
+
+    private void streamEndElement (final String name, final String data)
+    {
+	if (0 == depth) { // end of the stream
+	    delegate.closeStream ();
+	    pipeline.startClosing ();
+	    return;
+	}
+
+	--depth;
+
+	if (null != raw)
+	    raw.endElement (name);
+
+	if (0 == depth) {
+	    final StanzaWriter raw = this.raw;
+
+	    this.raw = null;
+	    stream_delegate.endStanza (name,
+				       data,
+				       null == raw ? null : raw.finish ());
+	} else
+	    stream_delegate.endElement (depth, name, data);
+    }
+
+    private void write (final StanzaWriter writer)
+    {
+	final BufferedOutbound buffered_outbound = this.buffered_outbound;
+
+	if (null == buffered_outbound)
+	    writer.reset ();
+	else {
+	    final ByteBuffer data = writer.finish ();
+
+	    if (null != data)
+		buffered_outbound.write (data, buffer_pool);
+	}
+    }
+
+    // See StanzaDispatcher
+    void setDispatchPaused (final boolean paused)
+    {
+	synchronized (this) {
+	    dispatch_paused = paused;
+	}
+	updatePause ();
+    }
+
+    // See StanzaDispatcher, the stanzas of the lane have been dropped
+    void dispatchRejected (final Throwable cause)
+    {
+	pipeline.invalidate ("Stanza could not be dispatched", cause);
+    }
+
+    /* Tells the source to pause (or resume) the inbound data when
+       either the delegate or the dispatcher wants it paused */
+    private void updatePause ()
+    {
+	final boolean pause;
+
+	synchronized (this) {
+	    pause = delegate_paused || dispatch_paused;
+	    if (pause == source_paused)
+		return;
+	    source_paused = pause;
+	}
+
+	source.handleTargetEvent (pause
+				  ? PipelineEvent.PAUSE_INBOUND
+				  : PipelineEvent.RESUME_INBOUND);
+    }
+
+    private void dispatchStanza (final Stanza stanza)
+    {
+	if (null == dispatcher)
+	    handleStanza (stanza);
+	else
+	    dispatcher.dispatch (null == dispatch_key
+				 ? null
+				 : stanza.getAttribute (0, dispatch_key),
+				 new Runnable () {
+				     public void run ()
+				     {
+					 handleStanza (stanza);
+				     }
+				 });
+    }
+
+    private void closeStream ()
+    {
+	if (null == dispatcher) {
+	    delegate.closeStream ();
+	    pipeline.startClosing ();
+	} else
+	    dispatcher.whenDrained (new Runnable () {
+		    public void run ()
+		    {
+			delegate.closeStream ();
+			pipeline.startClosing ();
+		    }
+		});
+    }
+
+    private void handleStanza (final Stanza stanza)
+    {
+	if (null != tree_delegate)
+	    tree_delegate.handleStanza (stanza);
+	else {
+	    final Document document;
+
+	    try {
+		document = stanza.toDocument ();
+	    } catch (XmlException x) {
+		pipeline.invalidate ("Could not build the stanza document", x);
+		return;
+	    }
+
+	    delegate.handleStanza (document);
+	}
+    }
+
+    // Checks the limits for a new element, see setStanzaLimits
+    private boolean checkStart (final String name, final Attributes attrs)
+    {
+	final int depth = 1 + (null == stream_delegate
+			       ? stanza.getDepth ()
+			       : this.depth);
+	final int count = null == attrs ? 0 : attrs.getLength ();
+	long size = 1 == depth ? 0L : stanza_size;
+
+	if (max_depth > 0 && depth > max_depth)
+	    return exceed ("max_depth", depth, max_depth);
+
+	if (max_attributes > 0 && count > max_attributes)
+	    return exceed ("max_attributes", count, max_attributes);
+
+	if (max_stanza_size > 0) {
+	    size += name.length ();
+	    for (int a = 0;a < count;++a)
+		size += attrs.getQName (a).length ()
+		    + attrs.getValue (a).length ();
+
+	    if (size > max_stanza_size)
+		return exceed ("max_stanza_size", size, max_stanza_size);
+	}
+
+	stanza_size = size;
+
+	return true;
+    }
+
+    // Checks the limits for length more chars of text
+    private boolean checkText (final int text_length, final int length)
+    {
+	if (max_text_length > 0 && text_length + length > max_text_length)
+	    return exceed ("max_text_length",
+			   text_length + length,
+			   max_text_length);
+
+	if (max_stanza_size > 0 && stanza_size + length > max_stanza_size)
+	    return exceed ("max_stanza_size",
+			   stanza_size + length,
+			   max_stanza_size);
+
+	stanza_size += length;
+
+	return true;
+    }
+
+    // Drops the stanza being read and invalidates the pipeline
+    private boolean exceed (final String limit,
+			    final long value,
+			    final long max)
+    {
+	exceeded = true;
+
+	element_characters.setLength (0);
+	stanza.reset ();
+	raw = null;
+
+	pipeline.invalidate ("Stanza exceeds " + limit + "(" + max + ")"
+			     + " with " + value,
+			     null);
+
+	return false;
+    }
+
     // >>> ContentHandler
 
     public void startElement (final String uri,
@@ -167,10 +615,23 @@ public class XmlStanzaHandler
 			      final String name,
 			      final Attributes attrs)
     {
-	final PipelineState state = pipeline.getState ();
+	final PipelineState state;
+
+	if (exceeded)
+	    return;
+
+	state = pipeline.getState ();
 
 	element_characters.setLength (0);
 
+	if (stream_restarted && PipelineState.VALID == state) {
+	    stream_restarted = false;
+
+	    if (!delegate.openStream (name, attrs))
+		pipeline.invalidate ("Invalid restarted stream", null);
+	    return;
+	}
+
 	switch (state) {
 	case OPEN:
 	    if (delegate.openStream (name, attrs))
@@ -179,20 +640,15 @@ public class XmlStanzaHandler
 		pipeline.invalidate ("Invalid stream", null);
 	    break;
 	case VALID:
-	    if (null == stanza) {
-		try {
-		    stanza = new DomBuilder (name);
-		} catch (XmlException x) {
-		    // TODO: handleException (x);
-		}
-	    } else
-		stanza.addChildElement (name);
-
-	    if (null != attrs && attrs.getLength () > 0)
-		for (int a = 0;a < attrs.getLength ();++a)
-		    stanza.addAttribute
-			(attrs.getLocalName (a),
-			 attrs.getValue (a));
+	    if (!checkStart (name, attrs))
+		break;
+
+	    if (null != stream_delegate) {
+		streamStartElement (name, attrs);
+		break;
+	    }
+
+	    stanza.startElement (name, attrs);
 	    break;
 	default:
 	    logger.warning ("Ignoring start element("
@@ -206,33 +662,32 @@ public class XmlStanzaHandler
 			    final String local_name,
 			    final String name)
     {
-	final PipelineState state = pipeline.getState ();
-	final String data = (0 == element_characters.length ()
-			     ? null
-			     : element_characters.toString ());
+	final PipelineState state;
+	final String data;
+
+	if (exceeded)
+	    return;
+
+	state = pipeline.getState ();
+	data = (0 == element_characters.length ()
+		? null
+		: element_characters.toString ());
 
 	element_characters.setLength (0);
 
 	switch (state) {
 	case VALID:
-	    if (null == stanza) {
-		delegate.closeStream ();
-		pipeline.startClosing ();
-	    } else {
-		if (!(stanza.getName ().equals (name))) {
-		    pipeline.invalidate ("Unbalanced element found", null);
-		} else {
-		    if (null != data)
-			stanza.addText (data);
-
-		    if (stanza.hasParent ())
-			stanza.moveToParent ();
-		    else {
-			delegate.handleStanza (stanza.getDocument ());
-			stanza = null;
-		    }
-		}
+	    if (null != stream_delegate) {
+		streamEndElement (name, data);
+		break;
 	    }
+
+	    if (0 == stanza.getDepth ())
+		closeStream ();
+	    else if (!(stanza.getName ().equals (name))) {
+		pipeline.invalidate ("Unbalanced element found", null);
+	    } else if (0 == stanza.endElement ().getDepth ())
+		dispatchStanza (stanza.build ());
 	    break;
 	default:
 	    logger.warning ("Ignoring end element("
@@ -244,14 +699,30 @@ public class XmlStanzaHandler
 
     public void characters (char[] ch, int start, int length)
     {
-	element_characters.append (ch, start, length);
+	if (exceeded)
+	    return;
+
+	// the text between the stanzas is not kept
+	if (null != stream_delegate) {
+	    if (depth > 0 && checkText (element_characters.length (), length)) {
+		element_characters.append (ch, start, length);
+
+		if (null != raw)
+		    raw.text (ch, start, length);
+	    }
+	} else if (stanza.getDepth () > 0
+		   && checkText (stanza.getTextLength (), length))
+	    stanza.addText (ch, start, length);
     }
 
     public void startDocument ()
     {
 	element_characters = new StringBuilder ();
 
-	stanza = null;
+	stanza.reset ();
+	depth = 0;
+	raw = null;
+	stanza_size = 0L;
     }
 
     public void endDocument () {}
@@ -0,0 +1,28 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import java.nio.ByteBuffer;
+
+import org.xml.sax.Attributes;
+
+/* A delegate that gets the stanzas as a stream of events instead of
+   as a Document (handleStanza is never invoked), no tree is built for
+   it at all. attrs is only valid during the invocation it is passed
+   to, text is the character data directly within the element (null
+   if none). E.g. a router only looks at startStanza. */
+public interface XmlStanzaStreamDelegate
+    extends XmlStanzaDelegate
+{
+    /* Returns true if the stanza should be handed to endStanza as
+       bytes (raw passthrough), e.g. to forward it to another stream
+       with XmlStanzaDelegator.write (ByteBuffer) */
+    public boolean startStanza (String name, Attributes attrs);
+
+    // depth is 1 for the children of the stanza element
+    public void startElement (int depth, String name, Attributes attrs);
+    public void endElement (int depth, String name, String text);
+
+    /* raw is the stanza (UTF-8, equivalent to what was read but not
+       necessarily byte for byte) if startStanza asked for it, null
+       otherwise. The delegate owns raw. */
+    public void endStanza (String name, String text, ByteBuffer raw);
+}
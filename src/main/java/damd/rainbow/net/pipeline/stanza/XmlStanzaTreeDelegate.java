@@ -0,0 +1,12 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import damd.rainbow.xml.Stanza;
+
+/* A delegate that gets the stanzas as a (compact, immutable) Stanza
+   instead of a Document, handleStanza (Document) is never invoked. A
+   Stanza may be kept or handed to other threads as is. */
+public interface XmlStanzaTreeDelegate
+    extends XmlStanzaDelegate
+{
+    public void handleStanza (Stanza stanza);
+}
@@ -0,0 +1,341 @@
+package damd.rainbow.util.concurrent;
+
+import java.util.Queue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import damd.rainbow.behavior.Engine;
+
+/* Hashed timing wheel: timeouts are put in the bucket of the tick they
+   expire in (modulo the wheel size), each tick only the timeouts of a
+   single bucket are visited. Scheduling and cancelling are O(1) and
+   lock free, the tasks of expired timeouts are run on the thread of
+   the wheel so they should be short and must never block. */
+public class TimingWheel
+    implements
+	Runnable,
+	Engine
+{
+    public static class Timeout
+    {
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private final Runnable task;
+	private final long deadline; // in milliseconds
+
+	private volatile int state;
+
+	// >>> wheel thread only
+	private long rounds;
+	private Timeout prev;
+	private Timeout next;
+	private int bucket;
+	// <<< wheel thread only
+
+	private Timeout (final Runnable task, final long deadline)
+	{
+	    this.task = task;
+	    this.deadline = deadline;
+	}
+
+	/* Returns false if the timeout already expired (or was already
+	   cancelled) */
+	public boolean cancel ()
+	{
+	    synchronized (this) {
+		if (PENDING != state)
+		    return false;
+
+		state = CANCELLED;
+	    }
+
+	    return true;
+	}
+
+	private boolean expire ()
+	{
+	    synchronized (this) {
+		if (PENDING != state)
+		    return false;
+
+		state = EXPIRED;
+	    }
+
+	    return true;
+	}
+
+	public boolean isCancelled ()
+	{
+	    return CANCELLED == state;
+	}
+
+	public boolean isExpired ()
+	{
+	    return EXPIRED == state;
+	}
+    }
+
+    private Logger logger;
+
+    private String name;
+
+    private long tick; // in milliseconds
+    private int wheel_size; // power of two
+
+    private final Queue<Timeout> pending;
+
+    // >>> wheel thread only
+    private Timeout[] buckets; // heads of doubly linked lists
+    private long start_time; // in milliseconds
+    private long current_tick;
+    // <<< wheel thread only
+
+    private Thread worker;
+    private volatile boolean running;
+
+    public TimingWheel (final String name)
+    {
+	if (null == name)
+	    throw new NullPointerException ("name");
+
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+
+	tick = 100L;
+	wheel_size = 512;
+
+	pending = new ConcurrentLinkedQueue<> ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    // >>> Named
+
+    public String getName ()
+    {
+	return name;
+    }
+
+    public void setName (final String name)
+	throws UnsupportedOperationException
+    {
+	throw new UnsupportedOperationException ();
+    }
+
+    // <<< Named
+
+    private void checkState (State needed_state)
+	throws IllegalStateException
+    {
+	if (needed_state != currentState ())
+	    throw new IllegalStateException
+		("This method can only be invoked when the wheel is in"
+		 + " state(" + needed_state + ")");
+    }
+
+    /* tick (in milliseconds) is the resolution of the wheel,
+       wheel_size (rounded up to a power of two) the number of
+       buckets. */
+    public synchronized void setTick (final long tick, final int wheel_size)
+	throws IllegalStateException
+    {
+	checkState (State.STOPPED);
+
+	if (tick < 1)
+	    throw new IllegalArgumentException
+		("tick(" + tick + ") must be >= 1");
+
+	if (wheel_size < 1 || wheel_size > (1 << 30))
+	    throw new IllegalArgumentException
+		("wheel_size(" + wheel_size + ") is out of range");
+
+	this.tick = tick;
+	this.wheel_size = Integer.highestOneBit (wheel_size) == wheel_size
+	    ? wheel_size
+	    : Integer.highestOneBit (wheel_size) << 1;
+    }
+
+    /* Runs task (on the thread of the wheel) after delay milliseconds,
+       rounded up to the next tick. Can be invoked from any thread, the
+       returned timeout is already cancelled when the wheel is not
+       running (the task is never run). */
+    public Timeout schedule (final Runnable task, final long delay)
+    {
+	final Timeout timeout;
+
+	if (null == task)
+	    throw new NullPointerException ("task");
+
+	timeout = new Timeout (task,
+			       System.currentTimeMillis ()
+			       + Math.max (0L, delay));
+
+	if (running) {
+	    pending.offer (timeout);
+
+	    // stopped in the meantime, nobody polls pending anymore
+	    if (running || !pending.remove (timeout))
+		return timeout;
+	}
+
+	timeout.cancel ();
+
+	return timeout;
+    }
+
+    private void link (final Timeout timeout)
+    {
+	final long expires = Math.max (current_tick,
+				       (timeout.deadline - start_time
+					+ tick - 1) / tick);
+
+	timeout.rounds = (expires - current_tick) / buckets.length;
+	timeout.bucket = (int) (expires & (buckets.length - 1));
+
+	timeout.prev = null;
+	timeout.next = buckets[timeout.bucket];
+	if (null != timeout.next)
+	    timeout.next.prev = timeout;
+	buckets[timeout.bucket] = timeout;
+    }
+
+    private void unlink (final Timeout timeout)
+    {
+	if (null != timeout.prev)
+	    timeout.prev.next = timeout.next;
+	else
+	    buckets[timeout.bucket] = timeout.next;
+
+	if (null != timeout.next)
+	    timeout.next.prev = timeout.prev;
+
+	timeout.prev = timeout.next = null;
+    }
+
+    private void expireBucket (final int bucket)
+    {
+	Timeout timeout = buckets[bucket];
+
+	while (null != timeout) {
+	    final Timeout next = timeout.next;
+
+	    if (timeout.isCancelled ())
+		unlink (timeout);
+	    else if (timeout.rounds > 0)
+		--timeout.rounds;
+	    else {
+		unlink (timeout);
+
+		if (timeout.expire ()) {
+		    try {
+			timeout.task.run ();
+		    } catch (Throwable x) {
+			logger.log (Level.SEVERE,
+				    "While running timeout task",
+				    x);
+		    }
+		}
+	    }
+
+	    timeout = next;
+	}
+    }
+
+    // Cancels all the timeouts of a stopped wheel
+    private void dropAll ()
+    {
+	Timeout timeout;
+
+	while (null != (timeout = pending.poll ()))
+	    timeout.cancel ();
+
+	for (int bucket = 0;bucket < buckets.length;++bucket)
+	    while (null != (timeout = buckets[bucket])) {
+		unlink (timeout);
+		timeout.cancel ();
+	    }
+
+	buckets = null;
+    }
+
+    // >>> Runnable
+
+    public void run ()
+    {
+	logger.fine ("TimingWheel worker thread has started");
+
+	try {
+	    while (running) {
+		final long next_tick_at = start_time + (current_tick + 1) * tick;
+		final long sleep = next_tick_at - System.currentTimeMillis ();
+		Timeout timeout;
+
+		if (sleep > 0)
+		    Thread.sleep (sleep);
+
+		while (null != (timeout = pending.poll ()))
+		    if (!(timeout.isCancelled ()))
+			link (timeout);
+
+		expireBucket ((int) (current_tick & (buckets.length - 1)));
+		++current_tick;
+	    }
+	} catch (InterruptedException x) {
+	    // requested to stop (see changeState), swallow
+	}
+
+	logger.fine ("TimingWheel worker thread has stopped");
+    }
+
+    // <<< Runnable
+
+    // >>> Engine
+
+    public synchronized State currentState ()
+    {
+	return null != worker && worker.isAlive ()
+	    ? State.RUNNING
+	    : State.STOPPED;
+    }
+
+    public synchronized void changeState (final State new_state)
+	throws InterruptedException
+    {
+	if (new_state != currentState ()) {
+	    switch (new_state) {
+	    case RUNNING:
+		buckets = new Timeout[wheel_size];
+		start_time = System.currentTimeMillis ();
+		current_tick = 0L;
+
+		running = true;
+		worker = new Thread (this, toString ());
+		worker.setDaemon (true);
+		worker.start ();
+		break;
+	    case STOPPED:
+		running = false;
+		worker.interrupt ();
+		worker.join (5000);
+		if (worker.isAlive ())
+		    logger.severe ("Could not stop worker thread");
+		else
+		    dropAll ();
+		worker = null;
+		break;
+	    }
+	}
+    }
+
+    // <<< Engine
+}
@@ -0,0 +1,182 @@
+package damd.rainbow.xml;
+
+import java.util.ArrayDeque;
+
+import java.util.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.w3c.dom.Document;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/* Pool of DocumentBuilder's. A DocumentBuilder (nor the factory it
+   comes from) is not thread-safe, so each thread needs one of its own
+   while using it; leasing one from the pool is cheaper than creating
+   one every time.
+
+   Every thread keeps the last builder it released, so leasing one
+   again takes no lock at all. Only the builders leased on top of that
+   (e.g. while parsing within a parse) go through a shared list, of at
+   most max_idle builders, the surplus is left to the GC when it is
+   released. */
+public class DocumentBuilderPool
+{
+    private static DocumentBuilderPool default_pool = null;
+
+    public static DocumentBuilderPool getDefault ()
+    {
+	synchronized (DocumentBuilderPool.class) {
+	    if (null == default_pool)
+		default_pool = new DocumentBuilderPool ("default");
+	}
+
+	return default_pool;
+    }
+
+    private Logger logger;
+
+    private final String name;
+
+    private final DocumentBuilderFactory factory; // guarded by itself
+    private final ThreadLocal<DocumentBuilder> cached; // idle, per thread
+    private final ArrayDeque<DocumentBuilder> idle; // shared, guarded by this
+    private int max_idle;
+
+    public DocumentBuilderPool (final String name)
+    {
+	this (name, DocumentBuilderFactory.newInstance ());
+    }
+
+    /* factory is used by the pool only (while holding the lock of the
+       factory), it should not be changed afterwards */
+    public DocumentBuilderPool (final String name,
+				final DocumentBuilderFactory factory)
+    {
+	logger = Logger.getLogger (getClass ().getName ()
+				   + ".instance(" + name + ")");
+
+	this.name = name;
+	this.factory = factory;
+
+	cached = new ThreadLocal<> ();
+	idle = new ArrayDeque<> ();
+	max_idle = 2 * Runtime.getRuntime ().availableProcessors ();
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + name + "))";
+    }
+
+    public synchronized void setMaxIdle (final int max_idle)
+    {
+	this.max_idle = max_idle;
+
+	while (idle.size () > max_idle)
+	    idle.pollLast ();
+    }
+
+    // Idle builders in the shared list (not those kept per thread)
+    public synchronized int getIdleCount ()
+    {
+	return idle.size ();
+    }
+
+    /* Returns a builder for the calling thread only, it should be
+       given back with release (when it is not, it is simply left to
+       the GC) */
+    public DocumentBuilder lease ()
+	throws XmlException
+    {
+	DocumentBuilder builder = cached.get ();
+
+	if (null != builder) {
+	    cached.set (null);
+	    return builder;
+	}
+
+	synchronized (this) {
+	    builder = idle.pollLast ();
+	}
+
+	if (null != builder)
+	    return builder;
+
+	logger.fine ("Creating a DocumentBuilder");
+
+	try {
+	    synchronized (factory) {
+		return factory.newDocumentBuilder ();
+	    }
+	} catch (ParserConfigurationException e) {
+	    throw new XmlException (e);
+	}
+    }
+
+    public void release (final DocumentBuilder builder)
+    {
+	if (null == builder)
+	    return;
+
+	// drops the error handler, entity resolver, ... set by the user
+	builder.reset ();
+
+	if (null == cached.get ()) {
+	    cached.set (builder);
+	    return;
+	}
+
+	synchronized (this) {
+	    if (idle.size () < max_idle)
+		idle.offerLast (builder);
+	}
+    }
+
+    public Document newDocument ()
+	throws XmlException
+    {
+	final DocumentBuilder builder = lease ();
+
+	try {
+	    return builder.newDocument ();
+	} finally {
+	    release (builder);
+	}
+    }
+
+    public Document parse (final InputStream stream)
+	throws XmlException,
+	       IOException
+    {
+	final DocumentBuilder builder = lease ();
+
+	try {
+	    return builder.parse (stream);
+	} catch (SAXException e) {
+	    throw new XmlException (e);
+	} finally {
+	    release (builder);
+	}
+    }
+
+    public Document parse (final String uri)
+	throws XmlException,
+	       IOException
+    {
+	final DocumentBuilder builder = lease ();
+
+	try {
+	    return builder.parse (uri);
+	} catch (SAXException e) {
+	    throw new XmlException (e);
+	} finally {
+	    release (builder);
+	}
+    }
+}
@@ -8,31 +8,17 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Text;
 
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 public class DomBuilder
 {
-    private static DocumentBuilder doc_builder = null;
-
+    /* Returns a builder that is not shared with anybody, use
+       DocumentBuilderPool to lease (and give back) one instead */
+    @Deprecated
     public static DocumentBuilder getDocumentBuilder ()
 	throws XmlException
     {
-	if (null == doc_builder) {
-	    synchronized (DomBuilder.class) {
-		if (null == doc_builder) {
-		    try {
-			doc_builder = DocumentBuilderFactory.newInstance ()
-			    .newDocumentBuilder ();
-		    } catch (ParserConfigurationException e) {
-			throw new XmlException (e);
-		    }
-		}
-	    }
-	}
-
-	return doc_builder;
+	return DocumentBuilderPool.getDefault ().lease ();
     }
 
     private Document document;
@@ -45,7 +31,7 @@ public class DomBuilder
     public DomBuilder (String name)
 	throws XmlException
     {
-	document = getDocumentBuilder ().newDocument ();
+	document = DocumentBuilderPool.getDefault ().newDocument ();
 
 	current_element = document.createElement (name);
 	document.appendChild (current_element);
@@ -0,0 +1,211 @@
+package damd.rainbow.xml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/* An immutable element tree, as built by StanzaBuilder, that is a lot
+   lighter than a DOM Document: the elements are numbered in document
+   order (0 is the root) and kept in parallel arrays, the attributes of
+   an element are a range of the attribute arrays and its text is a
+   range of a single char array, only turned into a String when it is
+   asked for.
+
+   There are only elements, attributes and text (the character data
+   directly within an element, as if it came before its children),
+   names are interned (see StanzaBuilder). Mixed content is therefore
+   not kept in order: converted to a DOM or written again (see
+   StanzaWriter.stanza) all the text of an element comes before its
+   children, which is fine for stanzas but not for e.g. XHTML bodies.
+
+   Use StanzaReader to navigate it like a DomReader, toDocument if a
+   DOM is needed after all. */
+public final class Stanza
+{
+    private final int count; // elements
+    private final String[] names;
+    private final int[] parents; // -1 ~ root
+    private final int[] next_siblings; // -1 ~ last child
+
+    private final int[] attribute_offsets; // [count + 1]
+    private final String[] attribute_names;
+    private final String[] attribute_values;
+
+    private final char[] text;
+    private final int[] text_offsets;
+    private final int[] text_lengths;
+
+    private final String[] texts; // materialized by getText
+
+    Stanza (final int count,
+	    final String[] names,
+	    final int[] parents,
+	    final int[] next_siblings,
+	    final int[] attribute_offsets,
+	    final String[] attribute_names,
+	    final String[] attribute_values,
+	    final char[] text,
+	    final int[] text_offsets,
+	    final int[] text_lengths)
+    {
+	this.count = count;
+	this.names = names;
+	this.parents = parents;
+	this.next_siblings = next_siblings;
+	this.attribute_offsets = attribute_offsets;
+	this.attribute_names = attribute_names;
+	this.attribute_values = attribute_values;
+	this.text = text;
+	this.text_offsets = text_offsets;
+	this.text_lengths = text_lengths;
+
+	texts = new String[count];
+    }
+
+    public String toString ()
+    {
+	return getClass ().getName () + "(name(" + names[0] + ")"
+	    + " elements(" + count + "))";
+    }
+
+    public int getElementCount ()
+    {
+	return count;
+    }
+
+    public String getName ()
+    {
+	return names[0];
+    }
+
+    public String getName (final int element)
+    {
+	return names[element];
+    }
+
+    // Returns -1 for the root
+    public int getParent (final int element)
+    {
+	return parents[element];
+    }
+
+    // Returns -1 if there are no children
+    public int getFirstChild (final int element)
+    {
+	final int child = element + 1;
+
+	return child < count && parents[child] == element ? child : -1;
+    }
+
+    // Returns -1 for the last child
+    public int getNextSibling (final int element)
+    {
+	return next_siblings[element];
+    }
+
+    public int getAttributeCount (final int element)
+    {
+	return attribute_offsets[element + 1] - attribute_offsets[element];
+    }
+
+    public String getAttributeName (final int element, final int index)
+    {
+	return attribute_names[attribute_offsets[element] + index];
+    }
+
+    public String getAttributeValue (final int element, final int index)
+    {
+	return attribute_values[attribute_offsets[element] + index];
+    }
+
+    // Returns null if the element has no such attribute
+    public String getAttribute (final int element, final String name)
+    {
+	for (int a = attribute_offsets[element];
+	     a < attribute_offsets[element + 1];
+	     ++a)
+	    if (name.equals (attribute_names[a]))
+		return attribute_values[a];
+
+	return null;
+    }
+
+    public int getTextLength (final int element)
+    {
+	return text_lengths[element];
+    }
+
+    // Returns null if the element has no text at all
+    public String getText (final int element)
+    {
+	String value = texts[element];
+
+	/* Racing threads may both build it, but they build the same
+	   String */
+	if (null == value && text_lengths[element] > 0)
+	    texts[element] = value = new String (text,
+						 text_offsets[element],
+						 text_lengths[element]);
+
+	return value;
+    }
+
+    // Names from the root down to element, separated by /
+    public String getPath (final int element)
+    {
+	final StringBuilder path = new StringBuilder (names[element]);
+
+	for (int p = parents[element];p >= 0;p = parents[p])
+	    path.insert (0, names[p] + "/");
+
+	return path.toString ();
+    }
+
+    public StanzaReader getReader ()
+    {
+	return new StanzaReader (this);
+    }
+
+    // >>> org.w3c.dom adapter
+
+    public Document toDocument ()
+	throws XmlException
+    {
+	final Document document = Xml.newDocument ();
+
+	document.appendChild (toElement (document, 0));
+
+	return document;
+    }
+
+    /* Returns element (and everything below it) as a DOM Element of
+       document, not attached to anything */
+    public Element toElement (final Document document, final int element)
+    {
+	final Element[] elements = new Element[count];
+	int end = next_siblings[element];
+
+	// the subtree ends with the next sibling of element or an ancestor
+	for (int p = parents[element];end < 0 && p >= 0;p = parents[p])
+	    end = next_siblings[p];
+	if (end < 0)
+	    end = count;
+
+	for (int e = element;e < end;++e) {
+	    final Element current = document.createElement (names[e]);
+
+	    for (int a = attribute_offsets[e];a < attribute_offsets[e + 1];++a)
+		current.setAttribute (attribute_names[a], attribute_values[a]);
+
+	    if (text_lengths[e] > 0)
+		current.appendChild (document.createTextNode (getText (e)));
+
+	    if (e != element)
+		elements[parents[e]].appendChild (current);
+	    elements[e] = current;
+	}
+
+	return elements[element];
+    }
+
+    // <<< org.w3c.dom adapter
+}
@@ -0,0 +1,265 @@
+package damd.rainbow.xml;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xml.sax.Attributes;
+
+/* Builds Stanza's from (SAX like) events, one at a time. The builder
+   keeps its arrays between stanzas, build copies what is used into a
+   Stanza of exactly the right size.
+
+   Element and attribute names are interned in a table shared by all
+   builders so the (retained) stanzas share their name Strings. The
+   table is bounded, names seen when it is full are not interned. */
+public class StanzaBuilder
+{
+    private static final int MAX_NAMES = 4096;
+
+    private static final ConcurrentHashMap<String, String> names_table =
+	new ConcurrentHashMap<> ();
+
+    static String intern (final String name)
+    {
+	final String interned = names_table.get (name);
+
+	if (null != interned)
+	    return interned;
+
+	if (names_table.size () >= MAX_NAMES)
+	    return name;
+
+	final String previous = names_table.putIfAbsent (name, name);
+
+	return null == previous ? name : previous;
+    }
+
+    private int count; // elements
+    private String[] names;
+    private int[] parents;
+    private int[] next_siblings;
+    private int[] last_children; // while building, -1 ~ none (yet)
+    private int[] text_offsets;
+    private int[] text_lengths;
+
+    private int attribute_count;
+    private int[] attribute_offsets;
+    private String[] attribute_names;
+    private String[] attribute_values;
+
+    private int text_length;
+    private char[] text;
+
+    private int current; // open element, -1 ~ none
+    private int depth;
+    private StringBuilder[] pending_texts; // [depth - 1]
+
+    public StanzaBuilder ()
+    {
+	names = new String[16];
+	parents = new int[16];
+	next_siblings = new int[16];
+	last_children = new int[16];
+	text_offsets = new int[16];
+	text_lengths = new int[16];
+	attribute_offsets = new int[17];
+
+	attribute_names = new String[16];
+	attribute_values = new String[16];
+
+	text = new char[256];
+
+	pending_texts = new StringBuilder[4];
+
+	reset ();
+    }
+
+    // Drops the stanza being built
+    public void reset ()
+    {
+	Arrays.fill (names, 0, count, null);
+	Arrays.fill (attribute_names, 0, attribute_count, null);
+	Arrays.fill (attribute_values, 0, attribute_count, null);
+
+	for (int d = 0;d < depth;++d)
+	    pending_texts[d].setLength (0);
+
+	count = 0;
+	attribute_count = 0;
+	text_length = 0;
+	current = -1;
+	depth = 0;
+    }
+
+    // Number of open elements, 0 ~ between stanzas
+    public int getDepth ()
+    {
+	return depth;
+    }
+
+    // Name of the open element, null if there is none
+    public String getName ()
+    {
+	return current < 0 ? null : names[current];
+    }
+
+    // Length of the text of the open element so far, 0 if there is none
+    public int getTextLength ()
+    {
+	return 0 == depth ? 0 : pending_texts[depth - 1].length ();
+    }
+
+    public StanzaBuilder startElement (final String name)
+    {
+	if (0 == depth && count > 0)
+	    throw new IllegalStateException ("Stanza has not been built");
+
+	if (count + 1 == names.length) {
+	    final int size = names.length * 2;
+
+	    names = Arrays.copyOf (names, size);
+	    parents = Arrays.copyOf (parents, size);
+	    next_siblings = Arrays.copyOf (next_siblings, size);
+	    last_children = Arrays.copyOf (last_children, size);
+	    text_offsets = Arrays.copyOf (text_offsets, size);
+	    text_lengths = Arrays.copyOf (text_lengths, size);
+	    attribute_offsets = Arrays.copyOf (attribute_offsets, size + 1);
+	}
+
+	names[count] = intern (name);
+	parents[count] = current;
+	next_siblings[count] = -1;
+	last_children[count] = -1;
+	attribute_offsets[count] = attribute_count;
+	text_offsets[count] = 0;
+	text_lengths[count] = 0;
+
+	if (current >= 0) {
+	    if (last_children[current] >= 0)
+		next_siblings[last_children[current]] = count;
+	    last_children[current] = count;
+	}
+
+	if (depth == pending_texts.length)
+	    pending_texts = Arrays.copyOf (pending_texts, depth * 2);
+	if (null == pending_texts[depth])
+	    pending_texts[depth] = new StringBuilder ();
+
+	current = count++;
+	++depth;
+
+	return this;
+    }
+
+    public StanzaBuilder startElement (final String name,
+				       final Attributes attrs)
+    {
+	startElement (name);
+
+	// attributes are named by their local name, as DomBuilder did
+	if (null != attrs)
+	    for (int a = 0;a < attrs.getLength ();++a)
+		addAttribute (attrs.getLocalName (a), attrs.getValue (a));
+
+	return this;
+    }
+
+    /* Adds an attribute to the open element, which must not have any
+       children (yet) */
+    public StanzaBuilder addAttribute (final String name, final String value)
+    {
+	if (current < 0 || current != count - 1)
+	    throw new IllegalStateException ("No start tag to add to");
+
+	if (attribute_count == attribute_names.length) {
+	    final int size = attribute_names.length * 2;
+
+	    attribute_names = Arrays.copyOf (attribute_names, size);
+	    attribute_values = Arrays.copyOf (attribute_values, size);
+	}
+
+	attribute_names[attribute_count] = intern (name);
+	attribute_values[attribute_count] = value;
+	++attribute_count;
+
+	return this;
+    }
+
+    public StanzaBuilder addText (final char[] ch,
+				  final int start,
+				  final int length)
+    {
+	if (current < 0)
+	    throw new IllegalStateException ("No element to add text to");
+
+	pending_texts[depth - 1].append (ch, start, length);
+
+	return this;
+    }
+
+    public StanzaBuilder addText (final String value)
+    {
+	if (current < 0)
+	    throw new IllegalStateException ("No element to add text to");
+
+	pending_texts[depth - 1].append (value);
+
+	return this;
+    }
+
+    public StanzaBuilder endElement ()
+    {
+	final StringBuilder pending;
+
+	if (current < 0)
+	    throw new IllegalStateException ("No element to end");
+
+	pending = pending_texts[--depth];
+	if (pending.length () > 0) {
+	    final int length = pending.length ();
+
+	    if (text_length + length > text.length)
+		text = Arrays.copyOf (text, Math.max (text.length * 2,
+						      text_length + length));
+
+	    pending.getChars (0, length, text, text_length);
+	    text_offsets[current] = text_length;
+	    text_lengths[current] = length;
+	    text_length += length;
+
+	    pending.setLength (0);
+	}
+
+	current = parents[current];
+
+	return this;
+    }
+
+    /* Returns the stanza, all its elements must have been ended, and
+       resets the builder */
+    public Stanza build ()
+    {
+	final Stanza stanza;
+
+	if (0 == count || depth > 0)
+	    throw new IllegalStateException ("Stanza is not complete");
+
+	attribute_offsets[count] = attribute_count;
+
+	stanza = new Stanza (count,
+			     Arrays.copyOf (names, count),
+			     Arrays.copyOf (parents, count),
+			     Arrays.copyOf (next_siblings, count),
+			     Arrays.copyOf (attribute_offsets, count + 1),
+			     Arrays.copyOf (attribute_names, attribute_count),
+			     Arrays.copyOf (attribute_values, attribute_count),
+			     Arrays.copyOf (text, text_length),
+			     Arrays.copyOf (text_offsets, count),
+			     Arrays.copyOf (text_lengths, count));
+
+	reset ();
+
+	return stanza;
+    }
+}
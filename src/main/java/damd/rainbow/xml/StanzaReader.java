@@ -0,0 +1,226 @@
+package damd.rainbow.xml;
+
+import java.util.NoSuchElementException;
+import java.util.Arrays;
+
+/* DomReader for a Stanza: a cursor over its elements, it does not
+   touch (or build) any DOM. */
+public class StanzaReader
+{
+    private final Stanza stanza;
+
+    private int root_element;
+    private int current_element;
+
+    private int[] bookmarks;
+    private int bookmark_count;
+
+    public StanzaReader (final Stanza stanza)
+    {
+	this (stanza, 0);
+    }
+
+    public StanzaReader (final Stanza stanza, final int element)
+    {
+	this.stanza = stanza;
+
+	root_element = current_element = element;
+    }
+
+    public Stanza getStanza ()
+    {
+	return stanza;
+    }
+
+    public int getElement ()
+    {
+	return current_element;
+    }
+
+    public String getName ()
+    {
+	return stanza.getName (current_element);
+    }
+
+    public String getAttribute (final String name, final boolean mandatory)
+	throws XmlMissingAttributeException
+    {
+	String value = stanza.getAttribute (current_element, name);
+
+	// as DomReader, an empty attribute is a missing one
+	if (null != value && value.isEmpty ())
+	    value = null;
+
+	if (mandatory && null == value)
+	    throw new XmlMissingAttributeException
+		(stanza.getPath (current_element), name);
+
+	return value;
+    }
+
+    public String getText (final boolean mandatory)
+	throws XmlMissingValueException
+    {
+	String text = stanza.getText (current_element);
+
+	if (null != text && text.trim ().isEmpty ())
+	    text = null;
+
+	if (mandatory && null == text)
+	    throw new XmlMissingValueException
+		(stanza.getPath (current_element));
+
+	return text;
+    }
+
+    public StanzaReader push ()
+    {
+	if (null == bookmarks)
+	    bookmarks = new int[4];
+	else if (bookmark_count == bookmarks.length)
+	    bookmarks = Arrays.copyOf (bookmarks, bookmark_count * 2);
+
+	bookmarks[bookmark_count++] = current_element;
+
+	return this;
+    }
+
+    public StanzaReader pop ()
+	throws NoSuchElementException
+    {
+	if (0 == bookmark_count)
+	    throw new NoSuchElementException
+		("No bookmarks where ever created");
+
+	current_element = bookmarks[--bookmark_count];
+
+	return this;
+    }
+
+    public StanzaReader moveToRoot ()
+    {
+	current_element = root_element;
+
+	return this;
+    }
+
+    public boolean tryMoveToParent ()
+    {
+	final int parent = stanza.getParent (current_element);
+	final boolean found = parent >= 0;
+
+	if (found)
+	    current_element = parent;
+
+	return found;
+    }
+
+    public StanzaReader moveToParent ()
+	throws XmlMissingElementException
+    {
+	if (!tryMoveToParent ())
+	    throw new XmlMissingElementException
+		(stanza.getPath (current_element), "[parent]");
+
+	return this;
+    }
+
+    public boolean tryMoveToChild ()
+    {
+	final int child = stanza.getFirstChild (current_element);
+	final boolean found = child >= 0;
+
+	if (found)
+	    current_element = child;
+
+	return found;
+    }
+
+    public StanzaReader moveToChild ()
+	throws XmlMissingElementException
+    {
+	if (!tryMoveToChild ())
+	    throw new XmlMissingElementException
+		(stanza.getPath (current_element), "[child]");
+
+	return this;
+    }
+
+    public boolean tryMoveToNext ()
+    {
+	final int sibling = stanza.getNextSibling (current_element);
+	final boolean found = sibling >= 0;
+
+	if (found)
+	    current_element = sibling;
+
+	return found;
+    }
+
+    public StanzaReader moveToNext ()
+	throws XmlMissingElementException
+    {
+	if (!tryMoveToNext ())
+	    throw new XmlMissingElementException
+		(stanza.getPath (current_element), "[next]");
+
+	return this;
+    }
+
+    public boolean tryMoveToNamedChild (final String name)
+    {
+	for (int child = stanza.getFirstChild (current_element);
+	     child >= 0;
+	     child = stanza.getNextSibling (child))
+	    if (name.equals (stanza.getName (child))) {
+		current_element = child;
+		return true;
+	    }
+
+	return false;
+    }
+
+    public StanzaReader moveToNamedChild (final String name)
+	throws XmlMissingElementException
+    {
+	if (!tryMoveToNamedChild (name))
+	    throw new XmlMissingElementException
+		(stanza.getPath (current_element), name);
+
+	return this;
+    }
+
+    public boolean tryMoveToNextNamed ()
+    {
+	final String name = stanza.getName (current_element);
+
+	for (int sibling = stanza.getNextSibling (current_element);
+	     sibling >= 0;
+	     sibling = stanza.getNextSibling (sibling))
+	    if (name.equals (stanza.getName (sibling))) {
+		current_element = sibling;
+		return true;
+	    }
+
+	return false;
+    }
+
+    public StanzaReader moveToNextNamed ()
+	throws XmlMissingElementException
+    {
+	if (!tryMoveToNextNamed ()) {
+	    final int parent = stanza.getParent (current_element);
+
+	    throw new XmlMissingElementException
+		(parent < 0 ? null : stanza.getPath (parent),
+		 stanza.getName (current_element));
+	}
+
+	return this;
+    }
+
+    public StanzaReader getStanzaReader ()
+    {
+	return new StanzaReader (stanza, current_element);
+    }
+}
@@ -12,33 +12,17 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Text;
 
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 public class Xml
 {
-    private static DocumentBuilder doc_builder = null;
-
+    /* Returns a builder that is not shared with anybody, use
+       DocumentBuilderPool to lease (and give back) one instead */
+    @Deprecated
     public static DocumentBuilder getDocumentBuilder ()
 	throws XmlException
     {
-	if (null == doc_builder) {
-	    synchronized (Xml.class) {
-		if (null == doc_builder) {
-		    try {
-			doc_builder = DocumentBuilderFactory.newInstance ()
-			    .newDocumentBuilder ();
-		    } catch (ParserConfigurationException e) {
-			throw new XmlException (e);
-		    }
-		}
-	    }
-	}
-
-	return doc_builder;
+	return DocumentBuilderPool.getDefault ().lease ();
     }
 
     protected static String node_to_path (Node node)
@@ -58,7 +42,7 @@ public class Xml
     public static Document newDocument ()
 	throws XmlException
     {
-	return getDocumentBuilder ().newDocument ();
+	return DocumentBuilderPool.getDefault ().newDocument ();
     }
 
     public static Element createElement (Document doc,
@@ -90,30 +74,14 @@ public class Xml
 	throws XmlException,
 	       IOException
     {
-	Document doc;
-
-	try {
-	    doc = getDocumentBuilder ().parse (stream);
-	} catch (SAXException e) {
-	    throw new XmlException (e);
-	}
-
-	return doc;
+	return DocumentBuilderPool.getDefault ().parse (stream);
     }
 
     public static Document parse (String filename)
 	throws XmlException,
 	       IOException
     {
-	Document doc;
-
-	try {
-	    doc = getDocumentBuilder ().parse (filename);
-	} catch (SAXException e) {
-	    throw new XmlException (e);
-	}
-
-	return doc;
+	return DocumentBuilderPool.getDefault ().parse (filename);
     }
 
     public static void serialize (Node node, StringBuffer sb)
@@ -17,18 +17,27 @@ public class XmlException
 
     private static String getContextDescription (Node node, String context)
     {
-	StringBuilder sb = new StringBuilder ();
+	StringBuilder path = null;
 
 	if (null != node) {
-	    StringBuilder path = new StringBuilder (node.getNodeName ());
+	    path = new StringBuilder (node.getNodeName ());
 	    
 	    for (Node p = node.getParentNode ();
 		 null != p;
 		 p = p.getParentNode ())
 		path.insert (0, p.getNodeName () + "/");
-	    
-	    sb.append ("[" + path + "]");
 	}
+
+	return getContextDescription (path, context);
+    }
+
+    private static String getContextDescription (CharSequence path,
+						 String context)
+    {
+	StringBuilder sb = new StringBuilder ();
+
+	if (null != path)
+	    sb.append ("[" + path + "]");
 	
 	if (null != context)
 	    sb.append ("(" + context + ")");
@@ -57,6 +66,19 @@ public class XmlException
 	this.context = context;
     }
 
+    /* For trees that are not DOM (see Stanza), path is the names of
+       the elements from the root down to the node, separated by /.
+       Not public, new XmlException (null, ...) would be ambiguous. */
+    XmlException (String path,
+			 String context,
+			 Throwable cause)
+    {
+	super ("context(" + getContextDescription (path, context) + ")",
+	       cause);
+
+	this.context = context;
+    }
+
     public XmlException (Node node, 
 			 String context, 
 			 String msg,
@@ -11,4 +11,10 @@ public class XmlMissingAttributeException
     {
 	super (element, attribute_name, null);
     }
+
+    // See StanzaReader, not public (see XmlException)
+    XmlMissingAttributeException (String path, String attribute_name)
+    {
+	super (path, attribute_name, null);
+    }
 }
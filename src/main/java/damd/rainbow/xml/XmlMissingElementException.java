@@ -12,5 +12,12 @@ public class XmlMissingElementException
     {
 	super (parent, element_name, null);
     }
+
+    // See StanzaReader, not public (see XmlException)
+    XmlMissingElementException (String parent_path,
+				String element_name)
+    {
+	super (parent_path, element_name, null);
+    }
 }
 
@@ -11,5 +11,11 @@ public class XmlMissingValueException
     {
 	super (element, null, null);
     }
+
+    // See StanzaReader, not public (see XmlException)
+    XmlMissingValueException (String path)
+    {
+	super (path, null, null);
+    }
 }
 
@@ -0,0 +1,227 @@
+package damd.rainbow.net.pipeline.stanza;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+import org.w3c.dom.Document;
+
+import damd.rainbow.xml.DomReader;
+import damd.rainbow.xml.Stanza;
+import damd.rainbow.xml.StanzaBuilder;
+
+import damd.rainbow.net.pipeline.PipelineNode;
+import damd.rainbow.net.pipeline.BufferPool;
+import damd.rainbow.net.pipeline.BufferedOutbound;
+import damd.rainbow.net.pipeline.SharedBuffer;
+
+/* Checks the acknowledgement arithmetic of StreamSession (across the
+   2^32 wrap and after the ring overflowed) and resuming sessions
+   through StreamSessionManager. In this package for
+   StreamSession.startAt. */
+public class StreamSessionTest
+{
+    private static final long MASK = 0xffffffffL;
+
+    // A stream that only keeps what is written to it
+    private static class Stream
+	implements
+	    XmlStanzaDelegator
+    {
+	private final BufferedOutbound buffered_outbound =
+	    new BufferedOutbound (null);
+
+	public void write (final String value) {}
+	public void write (final DomReader stanza) {}
+	public void write (final Document stanza) {}
+	public void write (final Stanza stanza) {}
+	public void write (final ByteBuffer data) {}
+
+	public boolean write (final SharedBuffer data)
+	{
+	    return buffered_outbound.write (data.view (), data);
+	}
+
+	public void flush () {}
+
+	public boolean isWritable ()
+	{
+	    return true;
+	}
+
+	public void pauseReading () {}
+	public void resumeReading () {}
+	public void insertNode (final PipelineNode node) {}
+
+	// Returns (and drops) what has been written
+	public String drain ()
+	{
+	    final ByteBuffer output = ByteBuffer.allocate (4096);
+
+	    buffered_outbound.giveOutbound (output);
+	    output.flip ();
+
+	    return StandardCharsets.UTF_8.decode (output).toString ();
+	}
+
+	public void close ()
+	{
+	    buffered_outbound.close ();
+	}
+    }
+
+    private static int failures;
+
+    private static void check (final String what,
+			       final Object expected,
+			       final Object actual)
+    {
+	final boolean ok = expected.equals (actual);
+
+	if (!ok)
+	    ++failures;
+
+	System.out.println ((ok ? "ok     " : "FAILED ") + what
+			    + " expected(" + expected + ")"
+			    + " actual(" + actual + ")");
+    }
+
+    private static Stanza message (final int n)
+    {
+	return new StanzaBuilder ()
+	    .startElement ("message")
+	    .addAttribute ("n", Integer.toString (n))
+	    .endElement ()
+	    .build ();
+    }
+
+    private static void testWrap (final StreamSessionManager manager)
+    {
+	final Stream stream = new Stream ();
+	final StreamSession session = manager.create ("a@example.com",
+						       stream);
+
+	session.startAt (MASK - 1); // 2 stanzas before the wrap
+
+	for (int n = 0;n < 4;++n)
+	    session.write (message (n));
+	stream.drain ();
+
+	check ("wrap: outbound count", 2L, session.getOutboundCount ());
+	check ("wrap: unacked", 4, session.getUnackedCount ());
+	check ("wrap: ack before the wrap", true, session.acknowledge (MASK));
+	check ("wrap: unacked", 3, session.getUnackedCount ());
+	check ("wrap: ack after the wrap", true, session.acknowledge (1));
+	check ("wrap: unacked", 1, session.getUnackedCount ());
+	check ("wrap: ack too many", false, session.acknowledge (3));
+	check ("wrap: ack all", true, session.acknowledge (2));
+	check ("wrap: unacked", 0, session.getUnackedCount ());
+
+	for (int n = 0;n < 65536;++n)
+	    session.countInbound ();
+	check ("wrap: inbound count", 65536L, session.getInboundCount ());
+
+	session.close ();
+	stream.close ();
+    }
+
+    private static void testOverflow (final StreamSessionManager manager)
+    {
+	final Stream stream = new Stream ();
+	final StreamSession session = manager.create ("a@example.com",
+						       stream);
+
+	session.startAt (MASK - 4); // overflows across the wrap
+
+	for (int n = 0;n < 10;++n) {
+	    session.write (message (n));
+	    stream.drain ();
+	}
+
+	check ("overflow: unacked", 4, session.getUnackedCount ());
+	check ("overflow: resumable", false, session.isResumable ());
+	check ("overflow: ack lagging behind the dropped stanzas",
+	       true, session.acknowledge (MASK - 1));
+	check ("overflow: unacked", 4, session.getUnackedCount ());
+	check ("overflow: ack", true, session.acknowledge (3));
+	check ("overflow: unacked", 2, session.getUnackedCount ());
+	check ("overflow: ack too many", false, session.acknowledge (6));
+
+	session.write (message (10));
+	stream.drain ();
+	check ("overflow: ack after writing", true, session.acknowledge (6));
+	check ("overflow: unacked", 0, session.getUnackedCount ());
+
+	session.close ();
+	stream.close ();
+    }
+
+    private static void testResume (final StreamSessionManager manager)
+    {
+	final Stream first = new Stream ();
+	final Stream second = new Stream ();
+	final StreamSession session = manager.create ("a@example.com",
+						       first);
+
+	for (int n = 0;n < 3;++n)
+	    session.write (message (n));
+	first.drain ();
+
+	check ("resume: other owner",
+	       true,
+	       null == manager.resume (session.getId (),
+				       "b@example.com",
+				       second,
+				       1));
+	check ("resume: bad h",
+	       true,
+	       null == manager.resume (session.getId (),
+				       "a@example.com",
+				       second,
+				       9));
+	check ("resume: still attached", true, session.isAttached ());
+	check ("resume: still open", 1, manager.getSessionCount ());
+
+	check ("resume: owner",
+	       true,
+	       session == manager.resume (session.getId (),
+					  "a@example.com",
+					  second,
+					  1));
+	check ("resume: replayed",
+	       "<message n=\"1\"/><message n=\"2\"/>",
+	       second.drain ());
+
+	session.detach (second);
+	check ("resume: detached, bad h",
+	       true,
+	       null == manager.resume (session.getId (),
+				       "a@example.com",
+				       first,
+				       9));
+	check ("resume: closed", 0, manager.getSessionCount ());
+
+	first.close ();
+	second.close ();
+    }
+
+    public static void main (final String[] args)
+    {
+	final BufferPool buffer_pool = new BufferPool ("test");
+	final StreamSessionManager manager =
+	    new StreamSessionManager ("test");
+
+	manager.setBufferPool (buffer_pool);
+	manager.setMaxUnacked (4);
+
+	testWrap (manager);
+	testOverflow (manager);
+	testResume (manager);
+
+	check ("leased buffers", 0, buffer_pool.getLeasedCount ());
+
+	System.out.println (0 == failures ? "all ok" : failures + " FAILED");
+	if (failures > 0)
+	    System.exit (1);
+    }
+}
@@ -0,0 +1,153 @@
+package damd.rainbow.net.pipeline.stanza.test;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.XMLConstants;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import damd.rainbow.net.pipeline.stanza.StanzaWriter;
+
+/* Checks what StanzaWriter writes for namespaced DOM trees (built with
+   createElementNS/setAttributeNS, without declarations of their own)
+   and the escaping of text and attribute values, by parsing it back */
+public class StanzaWriterTest
+{
+    private static final String CLIENT = "jabber:client";
+    private static final String PING = "urn:xmpp:ping";
+    private static final String EXTRA = "urn:example:extra";
+
+    private static DocumentBuilderFactory factory;
+
+    private static int failures;
+
+    private static void check (final String what,
+			       final Object expected,
+			       final Object actual)
+    {
+	final boolean ok = expected.equals (actual);
+
+	if (!ok)
+	    ++failures;
+
+	System.out.println ((ok ? "ok     " : "FAILED ") + what
+			    + " expected(" + expected + ")"
+			    + " actual(" + actual + ")");
+    }
+
+    private static String write (final Document document)
+    {
+	final ByteBuffer buffer = new StanzaWriter (null)
+	    .node (document)
+	    .finish ();
+
+	return StandardCharsets.UTF_8.decode (buffer).toString ();
+    }
+
+    private static Document parse (final String xml)
+	throws Exception
+    {
+	return factory.newDocumentBuilder ().parse
+	    (new ByteArrayInputStream (xml.getBytes (StandardCharsets.UTF_8)));
+    }
+
+    private static void testNamespaces ()
+	throws Exception
+    {
+	final Document document = factory.newDocumentBuilder ()
+	    .newDocument ();
+	final Element iq = document.createElementNS (CLIENT, "iq");
+	final Element ping = document.createElementNS (PING, "ping");
+	final Element extra = document.createElementNS (EXTRA, "x:extra");
+	final Element plain = document.createElementNS (null, "plain");
+
+	iq.setAttributeNS (null, "type", "get");
+	iq.setAttributeNS (EXTRA, "mark", "1");
+	iq.setAttributeNS (XMLConstants.XML_NS_URI,
+			   "xml:lang", "en");
+	extra.setAttributeNS (EXTRA, "x:flag", "on");
+
+	document.appendChild (iq);
+	iq.appendChild (ping);
+	ping.appendChild (extra);
+	ping.appendChild (plain);
+
+	final String xml = write (document);
+
+	System.out.println (xml);
+
+	final Document back = parse (xml);
+	final Element back_iq = back.getDocumentElement ();
+	final Element back_ping = (Element) back_iq.getFirstChild ();
+	final Element back_extra = (Element) back_ping.getFirstChild ();
+	final Element back_plain = (Element) back_extra.getNextSibling ();
+
+	check ("iq namespace", CLIENT, back_iq.getNamespaceURI ());
+	check ("iq type", "get", back_iq.getAttributeNS (null, "type"));
+	check ("iq mark", "1", back_iq.getAttributeNS (EXTRA, "mark"));
+	check ("iq lang",
+	       "en",
+	       back_iq.getAttributeNS (XMLConstants.XML_NS_URI,
+				       "lang"));
+	check ("ping namespace", PING, back_ping.getNamespaceURI ());
+	check ("extra namespace", EXTRA, back_extra.getNamespaceURI ());
+	check ("extra prefix", "x", back_extra.getPrefix ());
+	check ("extra flag", "on", back_extra.getAttributeNS (EXTRA, "flag"));
+	check ("plain namespace", true, null == back_plain.getNamespaceURI ());
+
+	// already declared by the tree itself (as parsed): written once
+	final String again = write (back);
+
+	check ("declared once", xml, again);
+    }
+
+    private static void testEscaping ()
+	throws Exception
+    {
+	final String value = "a&b<c>d\"e\rf\tg\nh";
+	final Document document = factory.newDocumentBuilder ()
+	    .newDocument ();
+	final Element message = document.createElement ("message");
+
+	message.setAttribute ("value", value);
+	message.appendChild (document.createTextNode (value));
+	document.appendChild (message);
+
+	final String xml = write (document);
+
+	check ("escaped",
+	       "<message value=\"a&amp;b&lt;c&gt;d&quot;e&#13;f&#9;g&#10;h\">"
+	       + "a&amp;b&lt;c&gt;d&quot;e&#13;f\tg\nh</message>",
+	       xml);
+
+	final Element back = parse (xml).getDocumentElement ();
+
+	check ("attribute read back", value, back.getAttribute ("value"));
+	check ("text read back", value, back.getTextContent ());
+    }
+
+    public static void main (final String[] args)
+    {
+	try {
+	    factory = DocumentBuilderFactory.newInstance ();
+	    factory.setNamespaceAware (true);
+
+	    testNamespaces ();
+	    testEscaping ();
+	} catch (Exception x) {
+	    x.printStackTrace ();
+	    ++failures;
+	}
+
+	System.out.println (0 == failures ? "all ok" : failures + " FAILED");
+	if (failures > 0)
+	    System.exit (1);
+    }
+}
@@ -30,6 +30,8 @@ import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 import org.xml.sax.Attributes;
 
+import damd.rainbow.behavior.Engine;
+
 import damd.rainbow.logging.DevLogFormatter;
 
 import damd.rainbow.xml.DomReader;
@@ -37,6 +39,7 @@ import damd.rainbow.xml.DomReader;
 import damd.rainbow.net.SocketListener;
 import damd.rainbow.net.SocketHandler;
 import damd.rainbow.net.SocketHandlerFactory;
+import damd.rainbow.net.SelectorLoopGroup;
 
 import damd.rainbow.net.pipeline.Pipeline;
 import damd.rainbow.net.pipeline.PipelineSocketHandler;
@@ -114,7 +117,8 @@ public class XmlStanzaHandlerClientTest
 	final Pipeline pipeline = new Pipeline ();
 	final ExecutorService es = Executors
 	    .newCachedThreadPool (new DaemonThreadFactory ());
-	final PipelineSocketHandler sh = new PipelineSocketHandler (es, es);
+	final SelectorLoopGroup loops = new SelectorLoopGroup ("client");
+	final PipelineSocketHandler sh = new PipelineSocketHandler (loops, es);
 	final SocketChannel channel;
 	final boolean ssl;
 
@@ -138,6 +142,7 @@ public class XmlStanzaHandlerClientTest
 	    ks.load (new FileInputStream ("/Users/dirk/testkeys"), passphrase);
 	    tmf.init(ks);
 	    sslh.setClientMode (true);
+	    sslh.setPeer ("localhost", 10000);
 	    sslh.addTrustManagers (tmf.getTrustManagers ());
 
 	    pipeline.add (sslh);
@@ -146,6 +151,8 @@ public class XmlStanzaHandlerClientTest
 	pipeline.add (new PipelineInterceptor ("xml"));
 	pipeline.add (new XmlStanzaHandler (this));
 
+	loops.changeState (Engine.State.RUNNING);
+
 	channel = SocketChannel.open
 	    (new InetSocketAddress ("localhost", 10000));
 
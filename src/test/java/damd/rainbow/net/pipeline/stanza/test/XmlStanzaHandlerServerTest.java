@@ -31,12 +31,14 @@ import damd.rainbow.logging.DevLogFormatter;
 import damd.rainbow.net.SocketListener;
 import damd.rainbow.net.SocketHandler;
 import damd.rainbow.net.SocketHandlerFactory;
+import damd.rainbow.net.SelectorLoopGroup;
 
 import damd.rainbow.util.concurrent.DaemonThreadFactory;
 
 import damd.rainbow.net.pipeline.Pipeline;
 import damd.rainbow.net.pipeline.PipelineSocketHandler;
 import damd.rainbow.net.pipeline.PipelineSSLHandler;
+import damd.rainbow.net.pipeline.SSLContextFactory;
 
 import damd.rainbow.net.pipeline.stanza.XmlStanzaHandler;
 import damd.rainbow.net.pipeline.stanza.XmlStanzaDelegator;
@@ -51,24 +53,20 @@ public class XmlStanzaHandlerServerTest
 	implements SocketHandlerFactory
     {
 	private boolean ssl;
+	private static final SelectorLoopGroup loops =
+	    new SelectorLoopGroup ("test");
+
 	private ExecutorService es = Executors
 	    .newCachedThreadPool (new DaemonThreadFactory ());
 
-	public Factory (final boolean ssl)
-	{
-	    this.ssl = ssl;
-	}
+	private SSLContextFactory ssl_contexts;
 
-	public SocketHandler createSocketHandler ()
+	public Factory (final boolean ssl)
 	    throws Exception
 	{
-	    final Pipeline pipeline = new Pipeline ();
-	    final PipelineSocketHandler sh = new PipelineSocketHandler (es, es);
-
-	    pipeline.add (sh);
+	    this.ssl = ssl;
 
 	    if (ssl) {
-		final PipelineSSLHandler sslh = new PipelineSSLHandler ();
 		final KeyStore ks = KeyStore.getInstance ("JKS");
 		final KeyManagerFactory kmf = KeyManagerFactory
 		    .getInstance ("SunX509");
@@ -77,9 +75,22 @@ public class XmlStanzaHandlerServerTest
 		ks.load (new FileInputStream ("/Users/dirk/testkeys"),
 			 passphrase);
 		kmf.init(ks, passphrase);
-		sslh.addKeyManagers (kmf.getKeyManagers ());
 
-		pipeline.add (sslh);
+		ssl_contexts = new SSLContextFactory ("test");
+		ssl_contexts.addKeyManagers (kmf.getKeyManagers ());
+	    }
+	}
+
+	public SocketHandler createSocketHandler ()
+	    throws Exception
+	{
+	    final Pipeline pipeline = new Pipeline ();
+	    final PipelineSocketHandler sh = new PipelineSocketHandler (loops, es);
+
+	    pipeline.add (sh);
+
+	    if (ssl) {
+		pipeline.add (new PipelineSSLHandler (ssl_contexts));
 	    }
 
 	    pipeline.add (new XmlStanzaHandler
@@ -167,6 +178,7 @@ public class XmlStanzaHandlerServerTest
 					 ((InetAddress) null, 10000));
 
 	    listener.setHandlerFactory (new Factory (ssl));
+	    Factory.loops.changeState (Engine.State.RUNNING);
 	    listener.changeState (Engine.State.RUNNING);
 	    while (true) {
 		Thread.sleep (10000);
@@ -22,6 +22,7 @@ import damd.rainbow.behavior.Engine;
 import damd.rainbow.net.SocketListener;
 import damd.rainbow.net.SocketHandler;
 import damd.rainbow.net.SocketHandlerFactory;
+import damd.rainbow.net.SelectorLoopGroup;
 
 import damd.rainbow.net.pipeline.PipelineState;
 import damd.rainbow.net.pipeline.PipelineEvent;
@@ -30,6 +31,7 @@ import damd.rainbow.net.pipeline.PipelineSource;
 import damd.rainbow.net.pipeline.PipelineTarget;
 import damd.rainbow.net.pipeline.PipelineSocketHandler;
 import damd.rainbow.net.pipeline.PipelineSSLHandler;
+import damd.rainbow.net.pipeline.SSLContextFactory;
 import damd.rainbow.net.pipeline.BufferedOutbound;
 
 import damd.rainbow.util.concurrent.DaemonThreadFactory;
@@ -46,9 +48,14 @@ public class SSLHandlerTest
 
     private BufferedOutbound buffered_outbound;
 
+    private static final SelectorLoopGroup loops =
+	new SelectorLoopGroup ("test");
+
     private ExecutorService es = Executors
 	.newCachedThreadPool (new DaemonThreadFactory ());
 
+    private static SSLContextFactory ssl_contexts;
+
     private SSLHandlerTest ()
     {
 	logger = Logger.getLogger (getClass ().getName ());
@@ -62,15 +69,8 @@ public class SSLHandlerTest
     public SocketHandler createSocketHandler ()
 	throws Exception
     {
-	final PipelineSocketHandler sh = new PipelineSocketHandler (es, es);
-	final PipelineSSLHandler sslh = new PipelineSSLHandler ();
-	final KeyStore ks = KeyStore.getInstance ("JKS");
-	final KeyManagerFactory kmf = KeyManagerFactory.getInstance ("SunX509");
-	final char[] passphrase = "passphrase".toCharArray();
-
-	ks.load (new FileInputStream ("/Users/dirk/testkeys"), passphrase);
-	kmf.init(ks, passphrase);
-	sslh.addKeyManagers (kmf.getKeyManagers ());
+	final PipelineSocketHandler sh = new PipelineSocketHandler (loops, es);
+	final PipelineSSLHandler sslh = new PipelineSSLHandler (ssl_contexts);
 
 	new Pipeline ()
 	    .add (sh)
@@ -173,7 +173,17 @@ public class SSLHandlerTest
 	    listener.setListenerAddress (new InetSocketAddress ((InetAddress) null,
 								10000));
 
+	    final KeyStore ks = KeyStore.getInstance ("JKS");
+	    final KeyManagerFactory kmf = KeyManagerFactory.getInstance ("SunX509");
+	    final char[] passphrase = "passphrase".toCharArray();
+
+	    ks.load (new FileInputStream ("/Users/dirk/testkeys"), passphrase);
+	    kmf.init(ks, passphrase);
+	    ssl_contexts = new SSLContextFactory ("test");
+	    ssl_contexts.addKeyManagers (kmf.getKeyManagers ());
+
 	    listener.setHandlerFactory (new SSLHandlerTest ());
+	    loops.changeState (Engine.State.RUNNING);
 	    listener.changeState (Engine.State.RUNNING);
 	    while (true) {
 		Thread.sleep (10000);
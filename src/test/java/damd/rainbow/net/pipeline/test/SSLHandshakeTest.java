@@ -0,0 +1,338 @@
+package damd.rainbow.net.pipeline.test;
+
+import java.io.FileInputStream;
+
+import java.util.Arrays;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import damd.rainbow.net.pipeline.PipelineState;
+import damd.rainbow.net.pipeline.PipelineEvent;
+import damd.rainbow.net.pipeline.Pipeline;
+import damd.rainbow.net.pipeline.PipelineSource;
+import damd.rainbow.net.pipeline.PipelineTarget;
+import damd.rainbow.net.pipeline.PipelineSSLHandler;
+import damd.rainbow.net.pipeline.SSLContextFactory;
+import damd.rainbow.net.pipeline.BufferedOutbound;
+
+import damd.rainbow.util.concurrent.DaemonThreadFactory;
+
+/* Runs TLS handshakes between a client and a server
+   PipelineSSLHandler, without sockets: the data of a peer is handed
+   over in reads of various sizes (as a PipelineSocketHandler would,
+   including PAUSE_INBOUND and NEED_INBOUND), while the
+   delegated tasks run (slowly) on an executor. A handshake that
+   stalls is reported as such. */
+public class SSLHandshakeTest
+{
+    // Stands in for the PipelineSocketHandler of a peer
+    private static class End
+	implements PipelineSource
+    {
+	private Pipeline pipeline;
+	private PipelineTarget target;
+
+	private final ByteBuffer inbound = ByteBuffer.allocate (64 << 10);
+	private final ByteBuffer outbound = ByteBuffer.allocate (64 << 10);
+
+	private volatile boolean inbound_paused;
+	private volatile boolean inbound_needed;
+
+	private int reads; // see pump
+
+	// >>> PipelineNode
+
+	public void setPipeline (final Pipeline pipeline)
+	{
+	    this.pipeline = pipeline;
+	}
+
+	public void stateHasChanged (final PipelineState new_state) {}
+	public void openNode (final short phase) {}
+	public void closeNode () {}
+
+	// <<< PipelineNode
+
+	// >>> PipelineSource
+
+	public void setTarget (final PipelineTarget target)
+	{
+	    this.target = target;
+	}
+
+	public void handleTargetEvent (final PipelineEvent event)
+	{
+	    switch (event) {
+	    case NEED_INBOUND:
+		inbound_needed = true;
+		break;
+	    case PAUSE_INBOUND:
+		inbound_paused = true;
+		break;
+	    case RESUME_INBOUND:
+		inbound_paused = false;
+		break;
+	    default:
+		break;
+	    }
+	}
+
+	// <<< PipelineSource
+
+	/* Reads what the peer wrote (in wire), at most as many bytes as
+	   the next of sizes (so a read may end within a record, or hold
+	   several), hands the inbound data to the target and takes its
+	   outbound data, returns true if anything happened */
+	public boolean pump (final ByteBuffer wire, final int[] sizes)
+	    throws Exception
+	{
+	    final int before = wire.position () + outbound.position ();
+	    boolean busy = false;
+
+	    if (!inbound_paused && wire.position () > 0) {
+		final int count = Math.min (sizes[reads++ % sizes.length],
+					    wire.position ());
+
+		wire.flip ();
+		for (int n = 0;n < count;++n)
+		    inbound.put (wire.get ());
+		wire.compact ();
+		busy = count > 0;
+	    }
+
+	    if (!inbound_paused
+		&& (inbound.position () > 0 || inbound_needed)) {
+		inbound_needed = false;
+		inbound.flip ();
+		try {
+		    target.handleInbound (inbound);
+		} finally {
+		    inbound.compact ();
+		}
+	    }
+
+	    target.giveOutbound (outbound);
+
+	    return busy || before != wire.position () + outbound.position ();
+	}
+    }
+
+    // Writes greeting once the pipeline is open, keeps what it reads
+    private static class Peer
+	implements PipelineTarget
+    {
+	private final String greeting;
+	private final StringBuilder received = new StringBuilder ();
+
+	private PipelineSource source;
+	private BufferedOutbound buffered_outbound;
+
+	public Peer (final String greeting)
+	{
+	    this.greeting = greeting;
+	}
+
+	// >>> PipelineNode
+
+	public void setPipeline (final Pipeline pipeline) {}
+	public void stateHasChanged (final PipelineState new_state) {}
+
+	public void openNode (final short phase)
+	{
+	    switch (phase) {
+	    case 0:
+		buffered_outbound = new BufferedOutbound (source);
+		break;
+	    case 1:
+		buffered_outbound.write
+		    (ByteBuffer.wrap (greeting.getBytes (StandardCharsets.UTF_8)));
+		break;
+	    }
+	}
+
+	public void closeNode ()
+	{
+	    buffered_outbound = null;
+	}
+
+	// <<< PipelineNode
+
+	// >>> PipelineTarget
+
+	public void setSource (final PipelineSource source)
+	{
+	    this.source = source;
+	}
+
+	public synchronized void handleInbound (final ByteBuffer data)
+	{
+	    received.append (StandardCharsets.UTF_8.decode (data));
+	}
+
+	public void giveOutbound (final ByteBuffer data)
+	{
+	    buffered_outbound.giveOutbound (data);
+	}
+
+	// <<< PipelineTarget
+
+	public synchronized String getReceived ()
+	{
+	    return received.toString ();
+	}
+    }
+
+    // Runs the delegated tasks late, so reads go on in the meantime
+    private static class SlowExecutor
+	implements Executor
+    {
+	private final ExecutorService es = Executors
+	    .newSingleThreadExecutor (new DaemonThreadFactory ());
+
+	public void execute (final Runnable task)
+	{
+	    es.execute (new Runnable () {
+		    public void run ()
+		    {
+			try {
+			    Thread.sleep (20);
+			} catch (InterruptedException x) {
+			    Thread.currentThread ().interrupt ();
+			}
+			task.run ();
+		    }
+		});
+	}
+    }
+
+    private static final TrustManager[] TRUST_ALL = {
+	new X509TrustManager () {
+	    public void checkClientTrusted (final X509Certificate[] chain,
+					    final String auth_type) {}
+	    public void checkServerTrusted (final X509Certificate[] chain,
+					    final String auth_type) {}
+	    public X509Certificate[] getAcceptedIssuers ()
+	    {
+		return new X509Certificate[0];
+	    }
+	}
+    };
+
+    private static final int[][] READS = {
+	{ 1 },
+	{ 7 },
+	{ 100 },
+	{ 1, 16384 }, // a partial record, then all the rest
+	{ 7, 16384 },
+	{ 100, 16384 },
+	{ 16384 }
+    };
+
+    private static int failures;
+
+    private static boolean handshake (final SSLContextFactory server_contexts,
+				      final SSLContextFactory client_contexts,
+				      final int[] sizes)
+	throws Exception
+    {
+	final Executor executor = new SlowExecutor ();
+	final End server_end = new End ();
+	final End client_end = new End ();
+	final PipelineSSLHandler server_ssl =
+	    new PipelineSSLHandler (server_contexts);
+	final PipelineSSLHandler client_ssl =
+	    new PipelineSSLHandler (client_contexts);
+	final Peer server = new Peer ("hello from the server");
+	final Peer client = new Peer ("hello from the client");
+	final Pipeline server_pipeline = new Pipeline ();
+	final Pipeline client_pipeline = new Pipeline ();
+	final long deadline = System.currentTimeMillis () + 10000L;
+	boolean done;
+
+	server_ssl.setTaskExecutor (executor);
+	client_ssl.setTaskExecutor (executor);
+	client_ssl.setClientMode (true);
+
+	server_pipeline.add (server_end).add (server_ssl).add (server);
+	client_pipeline.add (client_end).add (client_ssl).add (client);
+	server_pipeline.open ();
+	client_pipeline.open ();
+
+	do {
+	    final boolean busy = client_end.pump (server_end.outbound, sizes)
+		| server_end.pump (client_end.outbound, sizes);
+
+	    done = "hello from the server".equals (client.getReceived ())
+		&& "hello from the client".equals (server.getReceived ());
+
+	    if (!busy && !done)
+		Thread.sleep (1); // waiting for the delegated tasks
+	} while (!done
+		 && server_pipeline.isUsable ()
+		 && client_pipeline.isUsable ()
+		 && System.currentTimeMillis () < deadline);
+
+	System.out.println ((done ? "ok     " : "FAILED ")
+			    + "reads(" + Arrays.toString (sizes) + ")"
+			    + " protocol(" + client_ssl.getProtocol () + ")"
+			    + " server_finished(" + server_ssl.isHandshakeFinished ()
+			    + ") client_finished(" + client_ssl.isHandshakeFinished ()
+			    + ") server_got(" + server.getReceived ()
+			    + ") client_got(" + client.getReceived () + ")");
+
+	server_pipeline.close ();
+	client_pipeline.close ();
+
+	return done;
+    }
+
+    public static void main (String[] args)
+    {
+	final String keys = 1 == args.length ? args[0] : "/Users/dirk/testkeys";
+
+	try {
+	    final KeyStore ks = KeyStore.getInstance ("JKS");
+	    final KeyManagerFactory kmf = KeyManagerFactory.getInstance ("SunX509");
+	    final char[] passphrase = "passphrase".toCharArray();
+
+	    ks.load (new FileInputStream (keys), passphrase);
+	    kmf.init(ks, passphrase);
+
+	    for (final String protocol : new String[] { "TLSv1.2", "TLSv1.3" }) {
+		final SSLContextFactory server_contexts =
+		    new SSLContextFactory ("server");
+		final SSLContextFactory client_contexts =
+		    new SSLContextFactory ("client");
+
+		server_contexts.setProtocols (protocol);
+		server_contexts.addKeyManagers (kmf.getKeyManagers ());
+		client_contexts.setProtocols (protocol);
+		client_contexts.addTrustManagers (TRUST_ALL);
+
+		for (final int[] sizes : READS)
+		    if (!handshake (server_contexts, client_contexts, sizes))
+			++failures;
+	    }
+	} catch (Exception x) {
+	    x.printStackTrace ();
+	    ++failures;
+	}
+
+	System.out.println (0 == failures ? "all ok" : failures + " FAILED");
+	if (failures > 0)
+	    System.exit (1);
+    }
+}
@@ -13,6 +13,7 @@ import damd.rainbow.behavior.Engine;
 import damd.rainbow.net.SocketListener;
 import damd.rainbow.net.SocketHandler;
 import damd.rainbow.net.SocketHandlerFactory;
+import damd.rainbow.net.SelectorLoopGroup;
 
 import damd.rainbow.net.pipeline.PipelineState;
 import damd.rainbow.net.pipeline.PipelineEvent;
@@ -27,6 +28,9 @@ public class SocketHandlerTest
 	SocketHandlerFactory,
 	PipelineTarget
 {
+    private static final SelectorLoopGroup loops =
+	new SelectorLoopGroup ("test");
+
     private Pipeline pipeline;
     private PipelineSource source;
 
@@ -37,7 +41,7 @@ public class SocketHandlerTest
     public SocketHandler createSocketHandler ()
     {
 	ExecutorService es = Executors.newCachedThreadPool ();
-	PipelineSocketHandler sh = new PipelineSocketHandler (es, es);
+	PipelineSocketHandler sh = new PipelineSocketHandler (loops, es);
 
 	new Pipeline ()
 	    .add (sh)
@@ -134,6 +138,7 @@ public class SocketHandlerTest
 								10000));
 
 	    listener.setHandlerFactory (new SocketHandlerTest ());
+	    loops.changeState (Engine.State.RUNNING);
 	    listener.changeState (Engine.State.RUNNING);
 	    while (true) {
 		Thread.sleep (10000);
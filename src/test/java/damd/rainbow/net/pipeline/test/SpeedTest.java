@@ -22,6 +22,7 @@ import damd.rainbow.behavior.Engine;
 import damd.rainbow.net.SocketListener;
 import damd.rainbow.net.SocketHandler;
 import damd.rainbow.net.SocketHandlerFactory;
+import damd.rainbow.net.SelectorLoopGroup;
 
 import damd.rainbow.net.pipeline.Pipeline;
 import damd.rainbow.net.pipeline.PipelineState;
@@ -44,6 +45,7 @@ public class SpeedTest
     private AtomicLong buffered_bytes = new AtomicLong ();
     private AtomicLong transmitted_bytes = new AtomicLong ();
 
+    private SelectorLoopGroup loops = new SelectorLoopGroup ("echo");
     private ExecutorService es = Executors
 	.newCachedThreadPool (new DaemonThreadFactory ());
 
@@ -137,7 +139,7 @@ public class SpeedTest
     public SocketHandler createSocketHandler ()
 	throws Exception
     {
-	final PipelineSocketHandler sh = new PipelineSocketHandler (es, es);
+	final PipelineSocketHandler sh = new PipelineSocketHandler (loops, es);
 
 	final PipelineSSLHandler sslh = new PipelineSSLHandler ();
 	final KeyStore ks = KeyStore.getInstance ("JKS");
@@ -166,6 +168,7 @@ public class SpeedTest
 	listener.setListenerAddress (new InetSocketAddress ((InetAddress) null,
 							    10000));
 	listener.setHandlerFactory (this);
+	loops.changeState (Engine.State.RUNNING);
 	listener.changeState (Engine.State.RUNNING);
 
 	{